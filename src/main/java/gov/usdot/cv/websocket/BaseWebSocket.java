@@ -1,17 +1,202 @@
 package gov.usdot.cv.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketFrame;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
 
 @WebSocket(maxIdleTime=0)
 public abstract class BaseWebSocket {
-	protected Session session;
+	protected volatile Session session;
+	protected WebSocketMessageBatcher batcher;
+	protected WebSocketHeartbeat heartbeat;
+	protected WebSocketPriorityQueue priorityQueue;
 	
+	// Liveness state, maintained by the heartbeat
+	volatile int heartbeatSlot = -1;
+	volatile long pingSentNanos = 0;
+	volatile int missedPings = 0;
+	volatile long roundTripNanos = -1;
+
 	public boolean isOpen() {
-		return (session != null && session.isOpen());
+		Session current = session;		// onClose may clear it concurrently
+		return (current != null && current.isOpen());
+	}
+
+	/**
+	 * Round trip time of the most recent answered heartbeat ping, -1 if none yet.
+	 */
+	public long getRoundTripNanos() {
+		return roundTripNanos;
+	}
+	
+	public void send(String message) throws IOException {
+		send(message, MessagePriority.NORMAL);
+	}
+	
+	/**
+	 * Without priority lanes enabled the priority is ignored.
+	 */
+	public void send(String message, MessagePriority priority) throws IOException {
+		if(priorityQueue != null) {
+			priorityQueue.offer(priority, message);
+		}
+		else if(batcher != null) {
+			batcher.add(message);
+		}
+		else {
+			sendFrame(message);
+		}
+	}
+
+	/**
+	 * Sends a frame numbered by WebSocketReplayLog. Live frames are handed over while
+	 * the topic is locked, so sockets that can queue them without blocking override this.
+	 */
+	protected void sendPublished(String frame) throws IOException {
+		send(frame);
+	}
+
+	// Binary messages are never batched
+	public void send(ByteBuffer message) throws IOException {
+		sendFrame(message);
+	}
+	
+	/**
+	 * Sends without waiting. The callback is told once the message has been written or
+	 * has failed; until then the buffer must not be modified or reused.
+	 */
+	public void send(ByteBuffer message, WriteCallback callback) {
+		sendFrame(message, callback);
+	}
+	
+	public void flush() throws IOException {
+		if(batcher != null) {
+			batcher.flush();
+		}
+	}
+
+	/**
+	 * Outbound priority lanes, null unless enabled.
+	 */
+	public WebSocketPriorityQueue getPriorityQueue() {
+		return priorityQueue;
+	}
+	
+	protected void enableBatching(long maxBatchDelay, int maxBatchSize) {
+		if(maxBatchDelay > 0 && maxBatchSize > 0) {
+			batcher = new WebSocketMessageBatcher(this, maxBatchDelay, maxBatchSize);
+		}
+	}
+
+	// Lanes take over from the batcher, coalescing only what queues up behind a write
+	protected void enablePriorityLanes(int maxPendingPerLane, int maxBatchSize) {
+		priorityQueue = (maxPendingPerLane > 0) ? new WebSocketPriorityQueue(this, maxPendingPerLane, maxBatchSize) : null;
+	}
+
+	// With a heartbeat running the session no longer needs to live forever, time it out
+	// shortly after the heartbeat would have given up on it as a backstop
+	protected void startHeartbeat(WebSocketHeartbeat heartbeat) {
+		if(heartbeat != null) {
+			this.heartbeat = heartbeat;
+			session.setIdleTimeout(heartbeat.getInterval() * (heartbeat.getMissThreshold() + 1));
+			heartbeat.register(this);
+		}
+	}
+	
+	protected void stopHeartbeat() {
+		if(heartbeat != null) {
+			heartbeat.unregister(this);
+		}
+	}
+	
+	@OnWebSocketFrame
+	public void onFrame(Frame frame) {
+		if(heartbeat != null && frame.getType() == Frame.Type.PONG) {
+			heartbeat.pongReceived(this, frame.getPayload());
+		}
 	}
 	
-	public abstract void send(String message) throws IOException;
+	protected void sendFrame(String message) throws IOException {
+		if(isOpen()) {
+			try {
+				// If messages are attempted to be sent by multiple threads(for example, multiple clients)
+				// to the same RemoteEndpoint, it can lead to blocking and throws the error:
+				//     java.lang.IllegalStateException: Blocking message pending 10000 for BLOCKING
+				// To alleviate this, use asynchronous, non-blocking methods that require us to check
+				// if the send was successful.
+				// https://bugs.eclipse.org/bugs/show_bug.cgi?id=474488
+				long start = WebSocketTracer.isEnabled() ? System.nanoTime() : 0;
+				Future<Void> sendFuture = session.getRemote().sendStringByFuture(message);
+				sendFuture.get(3, TimeUnit.SECONDS);	// Wait for completion
+				if(start != 0) {
+					WebSocketTracer.recordSince(WebSocketTracer.Stage.WRITE, start);
+				}
+			} catch (Exception e) {
+				throw new IOException("Message failed to send.", e);
+			}
+		}
+		else {
+			throw new IOException("No session is open.");
+		}
+	}
+	
+	protected void sendFrame(ByteBuffer message) throws IOException {
+		if(isOpen()) {
+			try {
+				long start = WebSocketTracer.isEnabled() ? System.nanoTime() : 0;
+				Future<Void> sendFuture = session.getRemote().sendBytesByFuture(message);
+				sendFuture.get(3, TimeUnit.SECONDS);	// Wait for completion
+				if(start != 0) {
+					WebSocketTracer.recordSince(WebSocketTracer.Stage.WRITE, start);
+				}
+			} catch (Exception e) {
+				throw new IOException("Message failed to send.", e);
+			}
+		}
+		else {
+			throw new IOException("No session is open.");
+		}
+	}
+	
+	protected void sendFrame(String message, WriteCallback callback) {
+		if(isOpen()) {
+			session.getRemote().sendString(message, traced(callback));
+		}
+		else {
+			callback.writeFailed(new IOException("No session is open."));
+		}
+	}
+	
+	protected void sendFrame(ByteBuffer message, WriteCallback callback) {
+		if(isOpen()) {
+			session.getRemote().sendBytes(message, traced(callback));
+		}
+		else {
+			callback.writeFailed(new IOException("No session is open."));
+		}
+	}
+	
+	private static WriteCallback traced(final WriteCallback callback) {
+		if(!WebSocketTracer.isEnabled()) {
+			return callback;
+		}
+		final long start = System.nanoTime();
+		return new WriteCallback() {
+			public void writeSuccess() {
+				WebSocketTracer.recordSince(WebSocketTracer.Stage.WRITE, start);
+				callback.writeSuccess();
+			}
+			
+			public void writeFailed(Throwable t) {
+				callback.writeFailed(t);
+			}
+		};
+	}
 }
@@ -0,0 +1,43 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * Text codec that decodes JSON into Maps, Object[] arrays, Strings, Numbers and
+ * Booleans, and encodes the same types (plus Collections) back to JSON.
+ */
+public class JsonMessageCodec implements WebSocketMessageCodec<Object> {
+
+	public boolean isBinary() {
+		return false;
+	}
+
+	public Object decode(String message) throws IOException {
+		try {
+			return JSON.parse(message);
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			throw new IOException("Invalid JSON message.", e);
+		}
+	}
+
+	public Object decode(ByteBuffer message) throws IOException {
+		return decode(StandardCharsets.UTF_8.decode(message).toString());
+	}
+
+	public String encodeText(Object message) throws IOException {
+		return JSON.toString(message);
+	}
+
+	public ByteBuffer encodeBinary(Object message, ByteBufferPool bufferPool) throws IOException {
+		byte[] encoded = encodeText(message).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = bufferPool.acquire(encoded.length, false);
+		buffer.clear();
+		buffer.put(encoded).flip();
+		return buffer;
+	}
+}
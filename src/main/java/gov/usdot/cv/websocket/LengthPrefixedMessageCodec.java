@@ -0,0 +1,65 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+/**
+ * Binary codec for a sequence of records, each a 4 byte big endian length followed by
+ * that many bytes. Decoded records are read-only slices of the received payload, so
+ * no record data is copied on the way in.
+ */
+public class LengthPrefixedMessageCodec implements WebSocketMessageCodec<List<ByteBuffer>> {
+
+	private static final int LENGTH_PREFIX = 4;
+
+	public boolean isBinary() {
+		return true;
+	}
+
+	public List<ByteBuffer> decode(String message) throws IOException {
+		throw new IOException("Length prefixed messages must be sent as binary.");
+	}
+
+	public List<ByteBuffer> decode(ByteBuffer message) throws IOException {
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		ByteBuffer payload = message.asReadOnlyBuffer();
+		while (payload.hasRemaining()) {
+			if (payload.remaining() < LENGTH_PREFIX) {
+				throw new IOException("Truncated record length at offset " + payload.position());
+			}
+			int length = payload.getInt();
+			if (length < 0 || length > payload.remaining()) {
+				throw new IOException("Record length " + length + " exceeds remaining " + payload.remaining() + " bytes.");
+			}
+			ByteBuffer record = payload.slice();
+			record.limit(length);
+			records.add(record);
+			payload.position(payload.position() + length);
+		}
+		return records;
+	}
+
+	public String encodeText(List<ByteBuffer> message) throws IOException {
+		throw new IOException("Length prefixed messages must be sent as binary.");
+	}
+
+	public ByteBuffer encodeBinary(List<ByteBuffer> message, ByteBufferPool bufferPool) throws IOException {
+		int length = 0;
+		for (ByteBuffer record: message) {
+			length += LENGTH_PREFIX + record.remaining();
+		}
+
+		ByteBuffer buffer = bufferPool.acquire(length, false);
+		buffer.clear();
+		for (ByteBuffer record: message) {
+			buffer.putInt(record.remaining());
+			buffer.put(record.duplicate());
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
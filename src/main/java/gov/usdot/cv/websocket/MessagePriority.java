@@ -0,0 +1,10 @@
+package gov.usdot.cv.websocket;
+
+/**
+ * Outbound lanes of a WebSocketPriorityQueue, highest first.
+ */
+public enum MessagePriority {
+	HIGH,
+	NORMAL,
+	BULK
+}
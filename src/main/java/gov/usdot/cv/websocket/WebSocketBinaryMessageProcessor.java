@@ -0,0 +1,8 @@
+package gov.usdot.cv.websocket;
+
+import java.nio.ByteBuffer;
+
+public interface WebSocketBinaryMessageProcessor {
+
+	public void processMessage(BaseWebSocket socket, ByteBuffer message);
+}
@@ -4,14 +4,17 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.ConsoleAppender;
@@ -21,6 +24,7 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
@@ -37,8 +41,15 @@ public class WebSocketClient {
 	private org.eclipse.jetty.websocket.client.WebSocketClient client;
 	private ClientWebSocket socket;
 	private List<WebSocketMessageProcessor> messageProcessors = new CopyOnWriteArrayList<WebSocketMessageProcessor>();
+	private Map<String, TopicPosition> lastSequences = new ConcurrentHashMap<String, TopicPosition>();
+	private WebSocketRequestTable requests = new WebSocketRequestTable();
 	private boolean reconnecting = false;
 	private boolean stop = false;
+	private volatile long reconnectDelay = 0;
+	private long maxBatchDelay = 0;
+	private int maxBatchSize = 0;
+	private int maxPendingPerLane = 0;
+	private WebSocketHeartbeat heartbeat;
 	
 	public WebSocketClient(String serverUri) throws URISyntaxException {
 		this(serverUri, null);
@@ -69,6 +80,90 @@ public class WebSocketClient {
 		socket.send(message);
 	}
 	
+	public void send(String message, MessagePriority priority) throws IOException {
+		socket.send(message, priority);
+	}
+	
+	public void send(ByteBuffer message) throws IOException {
+		socket.send(message);
+	}
+	
+	public void send(ByteBuffer message, WriteCallback callback) {
+		socket.send(message, callback);
+	}
+	
+	public void flush() throws IOException {
+		socket.flush();
+	}
+	
+	/**
+	 * Sends a request to the server's WebSocketRequestHandler. The returned future
+	 * completes with the response, or fails if the request could not be sent, the
+	 * handler failed, the connection closed or no response arrived within the timeout.
+	 * Any number of requests may be outstanding at once.
+	 */
+	public CompletableFuture<String> request(String message, long timeout, TimeUnit unit) {
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		long id = requests.register(response, timeout, unit);
+		try {
+			socket.send(WebSocketRequestTable.request(id, message));
+		} catch (IOException e) {
+			requests.fail(id, e);
+		}
+		return response;
+	}
+	
+	/**
+	 * Coalesces outgoing messages into batches of up to maxBatchSize characters, holding
+	 * a message for at most maxBatchDelay ms. Takes effect on the next (re)connect.
+	 */
+	public void setBatching(long maxBatchDelay, int maxBatchSize) {
+		this.maxBatchDelay = maxBatchDelay;
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	/**
+	 * Queues outgoing messages in a lane per MessagePriority holding up to
+	 * maxPendingPerLane messages, so high priority messages overtake queued bulk
+	 * traffic. Sends become asynchronous and fail once a lane is full. Takes effect on
+	 * the next (re)connect; pass 0 to disable.
+	 */
+	public void setPriorityLanes(int maxPendingPerLane) {
+		this.maxPendingPerLane = maxPendingPerLane;
+	}
+	
+	/**
+	 * Outbound priority lanes of the current connection, null unless enabled.
+	 */
+	public WebSocketPriorityQueue getPriorityQueue() {
+		return socket.getPriorityQueue();
+	}
+	
+	/**
+	 * Checks the connection with the given heartbeat, which may be shared between
+	 * clients. A connection the heartbeat gives up on is closed and reconnected.
+	 * Takes effect on the next (re)connect.
+	 */
+	public void setHeartbeat(WebSocketHeartbeat heartbeat) {
+		this.heartbeat = heartbeat;
+		if(heartbeat != null) {
+			heartbeat.start();
+		}
+	}
+	
+	/**
+	 * Sequence of the last message received on a topic published with
+	 * WebSocketServer.publish, 0 if none. Used to resume the topic on reconnect.
+	 */
+	public long getLastSequence(String topic) {
+		TopicPosition lastSequence = lastSequences.get(topic);
+		return (lastSequence != null) ? lastSequence.sequence : 0;
+	}
+	
+	public long getRoundTripNanos() {
+		return socket.getRoundTripNanos();
+	}
+	
 	public boolean isConnected() {
 		return (client != null && socket.isOpen());
 	}
@@ -104,6 +199,9 @@ public class WebSocketClient {
 		public void onOpen(Session session) {
 			this.session = session;
 			this.session.setIdleTimeout(0);		// Don't timeout
+			enableBatching(maxBatchDelay, maxBatchSize);
+			enablePriorityLanes(maxPendingPerLane, maxBatchSize);
+			startHeartbeat(WebSocketClient.this.heartbeat);
 			
 			logger.info("Connection opened to " + serverUri.toString());
 		}
@@ -111,14 +209,72 @@ public class WebSocketClient {
 		@OnWebSocketClose
 		public void onClose(int code, String reason) {
 			logger.info("Connection to " + serverUri.toString() + " closed.");
+			reconnectDelay = parseReconnectHint(reason);
+			if(batcher != null) {
+				batcher.close();
+			}
+			if(priorityQueue != null) {
+				priorityQueue.clear();
+			}
+			stopHeartbeat();
+			requests.failAll(new IOException("Connection to " + serverUri.toString() + " closed."));
+			// The session can still report open here, which would end the reconnect loop
+			session = null;
 			reconnect();
 		}
 
 		@OnWebSocketMessage
 		public void onMessage(String message) {
 			logger.debug("Received message: " + message);
+			long received = WebSocketTracer.isEnabled() ? System.nanoTime() : 0;
+			long receivedEpoch = (received != 0) ? WebSocketTracer.epochNanos() : 0;
+			List<String> messages;
+			try {
+				messages = WebSocketMessageBatcher.unbatch(message);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Dropping invalid message batch from " + serverUri.toString() + ": " + e.getMessage());
+				return;
+			}
+			for (String unbatched: messages) {
+				if (WebSocketTracer.isTraced(unbatched)) {
+					unbatched = WebSocketTracer.unwrap(unbatched, receivedEpoch);
+				}
+				if (WebSocketRequestTable.isResponse(unbatched)) {
+					requests.complete(unbatched);
+					continue;
+				}
+				if (WebSocketEnvelope.isType(unbatched, WebSocketReplayLog.SEQUENCE_TYPE)) {
+					String[] parts = WebSocketEnvelope.unwrap(unbatched, WebSocketReplayLog.SEQUENCE_TYPE, 3);
+					long sequence = Long.parseLong(parts[2]);
+					TopicPosition last = lastSequences.get(parts[0]);
+					if (last != null && last.epoch.equals(parts[1]) && sequence <= last.sequence) {
+						logger.debug("Dropping duplicate sequence " + sequence + " on topic " + parts[0]);
+						continue;
+					}
+					lastSequences.put(parts[0], new TopicPosition(parts[1], sequence));
+					unbatched = parts[3];
+				}
+				long dispatched = 0;
+				if (received != 0) {
+					dispatched = System.nanoTime();
+					WebSocketTracer.record(WebSocketTracer.Stage.RECEIVE_TO_DISPATCH, dispatched - received);
+				}
+				for (WebSocketMessageProcessor messageProcessor: messageProcessors) {
+					messageProcessor.processMessage(null, unbatched);
+				}
+				if (dispatched != 0) {
+					WebSocketTracer.recordSince(WebSocketTracer.Stage.DISPATCH, dispatched);
+				}
+			}
+		}
+
+		@OnWebSocketMessage
+		public void onMessage(byte[] payload, int offset, int length) {
+			logger.debug("Received binary message of " + length + " bytes");
 			for (WebSocketMessageProcessor messageProcessor: messageProcessors) {
-				messageProcessor.processMessage(null, message);
+				if (messageProcessor instanceof WebSocketBinaryMessageProcessor) {
+					((WebSocketBinaryMessageProcessor)messageProcessor).processMessage(null, ByteBuffer.wrap(payload, offset, length));
+				}
 			}
 		}
 
@@ -129,6 +285,21 @@ public class WebSocketClient {
 		
 		public void connect() {
 			ClientUpgradeRequest request = new ClientUpgradeRequest();
+			// We unwrap trace envelopes, so the server may send them when tracing is on
+			request.setHeader(WebSocketTracer.TRACE_HEADER, "true");
+			// Ask for whatever was published on our topics while we were away. Sent with
+			// the upgrade so the server holds those topics back before any live message.
+			if (!lastSequences.isEmpty()) {
+				StringBuilder positions = new StringBuilder();
+				for (Map.Entry<String, TopicPosition> lastSequence: lastSequences.entrySet()) {
+					TopicPosition position = lastSequence.getValue();
+					if (positions.length() > 0) {
+						positions.append(',');
+					}
+					positions.append(WebSocketReplayLog.resumeHeaderEntry(lastSequence.getKey(), position.epoch, position.sequence));
+				}
+				request.setHeader(WebSocketReplayLog.RESUME_HEADER, positions.toString());
+			}
 	        try {
 				client.connect(socket, serverUri, request);
 			} catch (IOException e) {
@@ -136,27 +307,15 @@ public class WebSocketClient {
 			}
 		}
 
-		public void send(String message) throws IOException {
-			if(isOpen()) {
+		public void close() {
+			if(batcher != null) {
 				try {
-					// If messages are attempted to be sent by multiple threads(for example, multiple clients)
-					// to the same RemoteEndpoint, it can lead to blocking and throws the error:
-					//     java.lang.IllegalStateException: Blocking message pending 10000 for BLOCKING
-					// To alleviate this, use asynchronous, non-blocking methods that require us to check
-					// if the send was successful.
-					// https://bugs.eclipse.org/bugs/show_bug.cgi?id=474488
-					Future<Void> sendFuture = session.getRemote().sendStringByFuture(message);
-					sendFuture.get(3, TimeUnit.SECONDS);	// Wait for completion
-				} catch (Exception e) {
-					throw new IOException("Message failed to send.", e);
+					batcher.flush();
+				} catch (IOException e) {
+					logger.warn("Failed to flush message batch before closing connection to " + serverUri.toString(), e);
 				}
+				batcher.close();
 			}
-			else {
-				throw new IOException("No session is open.");
-			}
-		}
-
-		public void close() {
 			if(isOpen()) {
 				session.close();
 				session = null;
@@ -167,6 +326,13 @@ public class WebSocketClient {
 	private class ReconnectClient implements Runnable {
 		public void run() {
 			reconnecting = true;
+			long delay = reconnectDelay;
+			reconnectDelay = 0;
+			if (delay > 0) {
+				// The server is going away, wait as asked so clients don't all rush back at once
+				logger.info("Server asked to wait " + delay + " ms before reconnecting to " + serverUri.toString());
+				try { Thread.sleep(delay); } catch (InterruptedException e) {}
+			}
 			while(!stop && !socket.isOpen()) {
 				socket.close();
 				try {
@@ -184,6 +350,32 @@ public class WebSocketClient {
 		}
 	}
 	
+	/**
+	 * Delay in ms a server that is shutting down asked for in its close reason, 0 if the
+	 * reason carries no valid hint.
+	 */
+	static long parseReconnectHint(String reason) {
+		if (reason != null && reason.startsWith(WebSocketServer.RECONNECT_AFTER)) {
+			try {
+				return Math.max(0, Long.parseLong(reason.substring(WebSocketServer.RECONNECT_AFTER.length())));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring invalid reconnect hint: " + reason);
+			}
+		}
+		return 0;
+	}
+	
+	// Last sequence seen on a topic and the epoch of the server log that numbered it
+	private static class TopicPosition {
+		private final String epoch;
+		private final long sequence;
+		
+		private TopicPosition(String epoch, long sequence) {
+			this.epoch = epoch;
+			this.sequence = sequence;
+		}
+	}
+	
 	private boolean isResolvable(URI serverUri) {
 		String host = null;
 		int port = 0;
@@ -0,0 +1,176 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Decodes each inbound message once with its codec and hands the resulting object to
+ * every typed processor registered with it. Register it with a WebSocketServer or
+ * WebSocketClient like any other message processor. Outbound objects are encoded once
+ * per call, into a pooled buffer for binary codecs, however many sockets they go to.
+ */
+public class WebSocketCodecProcessor<T> implements WebSocketMessageProcessor, WebSocketBinaryMessageProcessor {
+
+	private static final Logger logger = Logger.getLogger(WebSocketCodecProcessor.class);
+
+	private static final ByteBufferPool sharedBufferPool = new ArrayByteBufferPool();
+
+	private final WebSocketMessageCodec<T> codec;
+	private final ByteBufferPool bufferPool;
+	private final List<WebSocketTypedMessageProcessor<T>> messageProcessors = new CopyOnWriteArrayList<WebSocketTypedMessageProcessor<T>>();
+
+	public WebSocketCodecProcessor(WebSocketMessageCodec<T> codec) {
+		this(codec, sharedBufferPool);
+	}
+
+	public WebSocketCodecProcessor(WebSocketMessageCodec<T> codec, ByteBufferPool bufferPool) {
+		this.codec = codec;
+		this.bufferPool = bufferPool;
+	}
+
+	public void addMessageProcessor(WebSocketTypedMessageProcessor<T> messageProcessor) {
+		messageProcessors.add(messageProcessor);
+	}
+
+	public void processMessage(BaseWebSocket socket, String message) {
+		if (messageProcessors.isEmpty()) {
+			return;
+		}
+		try {
+			dispatch(socket, codec.decode(message));
+		} catch (IOException e) {
+			logger.error("Failed to decode text message: " + e, e);
+		}
+	}
+
+	public void processMessage(BaseWebSocket socket, ByteBuffer message) {
+		if (messageProcessors.isEmpty()) {
+			return;
+		}
+		try {
+			dispatch(socket, codec.decode(message));
+		} catch (IOException e) {
+			logger.error("Failed to decode binary message: " + e, e);
+		}
+	}
+
+	private void dispatch(BaseWebSocket socket, T message) {
+		for (WebSocketTypedMessageProcessor<T> messageProcessor: messageProcessors) {
+			messageProcessor.processMessage(socket, message);
+		}
+	}
+
+	public void send(BaseWebSocket socket, T message) throws IOException {
+		if (codec.isBinary()) {
+			ByteBuffer buffer = codec.encodeBinary(message, bufferPool);
+			PooledWrite write = new PooledWrite(buffer, 1);
+			socket.send(buffer, write.callback(null));
+			write.await();
+		}
+		else {
+			socket.send(codec.encodeText(message));
+		}
+	}
+
+	public void send(WebSocketClient client, T message) throws IOException {
+		if (codec.isBinary()) {
+			ByteBuffer buffer = codec.encodeBinary(message, bufferPool);
+			PooledWrite write = new PooledWrite(buffer, 1);
+			client.send(buffer, write.callback(null));
+			write.await();
+		}
+		else {
+			client.send(codec.encodeText(message));
+		}
+	}
+
+	/**
+	 * Encodes the message once and sends it to each of the sockets, logging rather
+	 * than throwing on per socket failures like WebSocketServer.sendMessage does.
+	 * Binary messages are written to all sockets concurrently and this does not wait
+	 * for the writes.
+	 */
+	public void send(Collection<? extends BaseWebSocket> sockets, T message) throws IOException {
+		if (codec.isBinary()) {
+			ByteBuffer buffer = codec.encodeBinary(message, bufferPool);
+			PooledWrite write = new PooledWrite(buffer, sockets.size());
+			for (BaseWebSocket socket: sockets) {
+				socket.send(buffer.duplicate(), write.callback(socket));
+			}
+		}
+		else {
+			String encoded = codec.encodeText(message);
+			for (BaseWebSocket socket: sockets) {
+				try {
+					socket.send(encoded);
+				} catch (IOException e) {
+					logger.error("Failed to send message to session: " + socket + " error: " + e, e);
+				}
+			}
+		}
+	}
+
+	// Returns the pooled buffer once every write of it has completed or failed, never
+	// earlier: a write that times out may still be reading from it.
+	private class PooledWrite {
+		private final ByteBuffer buffer;
+		private final AtomicInteger remaining;
+		private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		private PooledWrite(ByteBuffer buffer, int writes) {
+			this.buffer = buffer;
+			this.remaining = new AtomicInteger(writes);
+			if (writes == 0) {
+				bufferPool.release(buffer);
+			}
+		}
+
+		// Failures are logged against the target socket; single writes pass null and
+		// report them through await() instead.
+		private WriteCallback callback(final Object target) {
+			return new WriteCallback() {
+				public void writeSuccess() {
+					written();
+					done.complete(null);
+				}
+
+				public void writeFailed(Throwable t) {
+					if (target != null) {
+						logger.error("Failed to send message to session: " + target + " error: " + t, t);
+					}
+					written();
+					done.completeExceptionally(t);
+				}
+			};
+		}
+
+		private void written() {
+			if (remaining.decrementAndGet() == 0) {
+				bufferPool.release(buffer);
+			}
+		}
+
+		// Only used for single writes, so done reflects that write.
+		private void await() throws IOException {
+			try {
+				done.get(3, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				throw new IOException("Message failed to send.", e.getCause());
+			} catch (Exception e) {
+				throw new IOException("Message failed to send.", e);
+			}
+		}
+	}
+}
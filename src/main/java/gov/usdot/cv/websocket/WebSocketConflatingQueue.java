@@ -0,0 +1,59 @@
+package gov.usdot.cv.websocket;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latest value per key outbound queue for a single socket. Only one write is in flight
+ * at a time; while it is, newer messages replace pending messages with the same key
+ * in place, so a slow consumer only ever receives the current state of each key and
+ * the queue never holds more than one message per key.
+ */
+public class WebSocketConflatingQueue extends WebSocketOutboundQueue {
+
+	private final Map<String, String> pending = new LinkedHashMap<String, String>();
+	private long conflatedCount = 0;
+
+	public WebSocketConflatingQueue(BaseWebSocket socket) {
+		super(socket);
+	}
+
+	public void offer(String key, String message) {
+		synchronized (this) {
+			if (!startWriting()) {
+				if (pending.put(key, message) != null) {
+					conflatedCount++;
+				}
+				return;
+			}
+		}
+		drain(message);
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public synchronized long getConflatedCount() {
+		return conflatedCount;
+	}
+
+	public synchronized void clear() {
+		pending.clear();
+	}
+
+	@Override
+	protected String poll() {
+		if (!socket.isOpen()) {
+			pending.clear();
+		}
+		Iterator<String> iterator = pending.values().iterator();
+		if (!iterator.hasNext()) {
+			return null;
+		}
+		String message = iterator.next();
+		iterator.remove();
+		return message;
+	}
+}
@@ -0,0 +1,64 @@
+package gov.usdot.cv.websocket;
+
+/**
+ * Framing used for library level control messages that travel on the same text
+ * channel as application messages. An envelope has the form
+ * <pre>RS type [RS header]* RS body</pre>
+ * where RS is the ASCII record separator, which never starts a well formed
+ * application message (JSON, XML or hex encoded payloads).
+ */
+public class WebSocketEnvelope {
+
+	public static final char SEPARATOR = '\u001E';
+
+	private WebSocketEnvelope() { }
+
+	public static String wrap(String type, String body, String... headers) {
+		int length = type.length() + body.length() + 2;
+		for (String header: headers) {
+			length += header.length() + 1;
+		}
+
+		StringBuilder envelope = new StringBuilder(length);
+		envelope.append(SEPARATOR).append(type);
+		for (String header: headers) {
+			envelope.append(SEPARATOR).append(header);
+		}
+		envelope.append(SEPARATOR).append(body);
+		return envelope.toString();
+	}
+
+	public static boolean isEnvelope(String message) {
+		return (message != null && message.length() > 0 && message.charAt(0) == SEPARATOR);
+	}
+
+	public static boolean isType(String message, String type) {
+		return isEnvelope(message)
+				&& message.length() > type.length() + 1
+				&& message.startsWith(type, 1)
+				&& message.charAt(type.length() + 1) == SEPARATOR;
+	}
+
+	/**
+	 * Splits an envelope of the given type into its headers followed by its body,
+	 * so the returned array always has headerCount + 1 elements.
+	 */
+	public static String[] unwrap(String message, String type, int headerCount) {
+		if (!isType(message, type)) {
+			throw new IllegalArgumentException("Message is not a " + type + " envelope.");
+		}
+
+		String[] parts = new String[headerCount + 1];
+		int start = type.length() + 2;
+		for (int i = 0; i < headerCount; i++) {
+			int end = message.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				throw new IllegalArgumentException("Malformed " + type + " envelope, expected " + headerCount + " headers.");
+			}
+			parts[i] = message.substring(start, end);
+			start = end + 1;
+		}
+		parts[headerCount] = message.substring(start);
+		return parts;
+	}
+}
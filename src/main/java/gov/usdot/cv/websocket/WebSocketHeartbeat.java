@@ -0,0 +1,145 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Ping/pong liveness checks for any number of sockets on a single timer. Sockets are
+ * spread over the slots of a timer wheel that advances one slot per interval / slots,
+ * so each socket is pinged once per interval without all pings going out at once.
+ * A socket that leaves missThreshold pings in a row unanswered is disconnected.
+ */
+public class WebSocketHeartbeat {
+
+	private static final Logger logger = Logger.getLogger(WebSocketHeartbeat.class);
+
+	static final int WHEEL_SLOTS = 16;
+	private static final int PING_PAYLOAD_LENGTH = 8;
+
+	private final long interval;
+	private final int missThreshold;
+	private final List<Set<BaseWebSocket>> wheel;
+	private final AtomicInteger nextSlot = new AtomicInteger();
+	private int currentSlot = 0;
+	private ScheduledFuture<?> tickTask;
+
+	public WebSocketHeartbeat(long intervalMillis, int missThreshold) {
+		if (intervalMillis < WHEEL_SLOTS || missThreshold < 1) {
+			throw new IllegalArgumentException("Heartbeat interval must be at least " + WHEEL_SLOTS + " ms and miss threshold at least 1.");
+		}
+		this.interval = intervalMillis;
+		this.missThreshold = missThreshold;
+		this.wheel = new ArrayList<Set<BaseWebSocket>>(WHEEL_SLOTS);
+		for (int i = 0; i < WHEEL_SLOTS; i++) {
+			wheel.add(Collections.newSetFromMap(new ConcurrentHashMap<BaseWebSocket, Boolean>()));
+		}
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public int getMissThreshold() {
+		return missThreshold;
+	}
+
+	public synchronized void start() {
+		if (tickTask == null) {
+			long tick = interval / WHEEL_SLOTS;
+			tickTask = WebSocketScheduler.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					tick();
+				}
+			}, tick, tick, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (tickTask != null) {
+			tickTask.cancel(false);
+			tickTask = null;
+		}
+	}
+
+	public void register(BaseWebSocket socket) {
+		socket.pingSentNanos = 0;
+		socket.missedPings = 0;
+		int slot = (nextSlot.getAndIncrement() & Integer.MAX_VALUE) % WHEEL_SLOTS;
+		socket.heartbeatSlot = slot;
+		wheel.get(slot).add(socket);
+	}
+
+	public void unregister(BaseWebSocket socket) {
+		if (socket.heartbeatSlot >= 0) {
+			wheel.get(socket.heartbeatSlot).remove(socket);
+			socket.heartbeatSlot = -1;
+		}
+	}
+
+	public void pongReceived(BaseWebSocket socket, ByteBuffer payload) {
+		long now = System.nanoTime();
+		if (payload == null || payload.remaining() != PING_PAYLOAD_LENGTH) {
+			return;		// Unsolicited pong or one that answers someone else's ping
+		}
+		long sentNanos = payload.getLong(payload.position());
+		if (sentNanos == socket.pingSentNanos) {
+			socket.roundTripNanos = now - sentNanos;
+			socket.pingSentNanos = 0;
+			socket.missedPings = 0;
+		}
+	}
+
+	void tick() {
+		Set<BaseWebSocket> slot;
+		synchronized (this) {
+			slot = wheel.get(currentSlot);
+			currentSlot = (currentSlot + 1) % WHEEL_SLOTS;
+		}
+
+		for (BaseWebSocket socket: slot) {
+			try {
+				check(socket);
+			} catch (Exception e) {
+				logger.warn("Heartbeat check failed: " + e, e);
+			}
+		}
+	}
+
+	private void check(BaseWebSocket socket) throws IOException {
+		Session session = socket.session;
+		if (session == null || !session.isOpen()) {
+			unregister(socket);
+			return;
+		}
+
+		if (socket.pingSentNanos != 0) {
+			socket.missedPings++;
+			if (socket.missedPings >= missThreshold) {
+				logger.warn("No pong received for " + socket.missedPings + " pings, disconnecting " + socket);
+				unregister(socket);
+				session.disconnect();
+				return;
+			}
+		}
+
+		long now = System.nanoTime();
+		if (now == 0) {
+			now = 1;	// 0 is reserved for no outstanding ping
+		}
+		ByteBuffer payload = ByteBuffer.allocate(PING_PAYLOAD_LENGTH);
+		payload.putLong(0, now);
+		socket.pingSentNanos = now;
+		session.getRemote().sendPing(payload);
+	}
+}
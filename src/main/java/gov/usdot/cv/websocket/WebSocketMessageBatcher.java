@@ -0,0 +1,220 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Coalesces messages sent to a single socket into one frame. A batch is flushed once
+ * it holds maxBatchSize characters or its oldest message is maxBatchDelay ms old,
+ * whichever comes first. Batches are sent as a "batch" envelope whose body is a
+ * sequence of length prefixed records: length:message length:message ...
+ */
+public class WebSocketMessageBatcher {
+
+	private static final Logger logger = Logger.getLogger(WebSocketMessageBatcher.class);
+
+	public static final String BATCH_TYPE = "batch";
+
+	private final BaseWebSocket socket;
+	private final long maxBatchDelay;
+	private final int maxBatchSize;
+	private final List<String> pending = new ArrayList<String>();
+	private long[] added = new long[16];	// When each pending message was added, 0 if not traced
+	private int pendingSize = 0;
+	private ScheduledFuture<?> flushTask;
+	private boolean closed = false;
+
+	public WebSocketMessageBatcher(BaseWebSocket socket, long maxBatchDelay, int maxBatchSize) {
+		this.socket = socket;
+		this.maxBatchDelay = maxBatchDelay;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	// Batches are queued for writing while holding the lock so they leave in the order
+	// they were filled, but waiting for the write happens outside it. A full batch still
+	// holds back the caller until it is written.
+	public void add(String message) throws IOException {
+		Future<Void> written;
+		synchronized (this) {
+			written = append(message);
+		}
+		await(written);
+	}
+
+	public void flush() throws IOException {
+		Future<Void> written;
+		synchronized (this) {
+			written = sendBatch();
+		}
+		await(written);
+	}
+
+	// Must be called while holding the lock.
+	private Future<Void> append(String message) throws IOException {
+		if (closed) {
+			throw new IOException("No session is open.");
+		}
+
+		if (WebSocketTracer.isEnabled()) {
+			if (pending.size() >= added.length) {
+				added = Arrays.copyOf(added, Math.max(added.length * 2, pending.size() + 1));
+			}
+			added[pending.size()] = System.nanoTime();
+		}
+		else if (pending.size() < added.length) {
+			added[pending.size()] = 0;
+		}
+		pending.add(message);
+		pendingSize += message.length();
+		if (pendingSize >= maxBatchSize) {
+			return sendBatch();
+		}
+		if (flushTask == null) {
+			// Runs on the shared scheduler, so it only queues the batch and never waits
+			flushTask = WebSocketScheduler.schedule(new Runnable() {
+				public void run() {
+					synchronized (WebSocketMessageBatcher.this) {
+						sendBatch();
+					}
+				}
+			}, maxBatchDelay, TimeUnit.MILLISECONDS);
+		}
+		return null;
+	}
+
+	// Must be called while holding the lock.
+	private Future<Void> sendBatch() {
+		if (flushTask != null) {
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+		if (pending.isEmpty()) {
+			return null;
+		}
+
+		String frame = (pending.size() == 1) ? pending.get(0) : encode(pending);
+		if (WebSocketTracer.isEnabled()) {
+			for (int i = 0; i < pending.size() && i < added.length; i++) {
+				if (added[i] != 0) {
+					WebSocketTracer.recordSince(WebSocketTracer.Stage.ENQUEUE_TO_WRITE, added[i]);
+				}
+			}
+		}
+		pending.clear();
+		pendingSize = 0;
+
+		final CompletableFuture<Void> written = new CompletableFuture<Void>();
+		socket.sendFrame(frame, new WriteCallback() {
+			public void writeSuccess() {
+				written.complete(null);
+			}
+
+			public void writeFailed(Throwable t) {
+				logger.warn("Failed to send message batch: " + t);
+				written.completeExceptionally(t);
+			}
+		});
+		return written;
+	}
+
+	private static void await(Future<Void> written) throws IOException {
+		if (written == null) {
+			return;
+		}
+		try {
+			written.get(3, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			throw new IOException("Message failed to send.", e.getCause());
+		} catch (Exception e) {
+			throw new IOException("Message failed to send.", e);
+		}
+	}
+
+	// Drops anything still pending, used once the session is already gone.
+	public synchronized void close() {
+		closed = true;
+		if (flushTask != null) {
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+		if (!pending.isEmpty()) {
+			logger.warn("Discarding " + pending.size() + " batched messages for closed session.");
+			pending.clear();
+			pendingSize = 0;
+		}
+	}
+
+	public static String encode(List<String> messages) {
+		int length = 0;
+		for (String message: messages) {
+			length += message.length() + 11;
+		}
+
+		StringBuilder body = new StringBuilder(length);
+		for (String message: messages) {
+			body.append(message.length()).append(':').append(message);
+		}
+		return WebSocketEnvelope.wrap(BATCH_TYPE, body.toString(), String.valueOf(messages.size()));
+	}
+
+	public static boolean isBatch(String message) {
+		return WebSocketEnvelope.isType(message, BATCH_TYPE);
+	}
+
+	/**
+	 * Returns the messages contained in a batch, or the message itself when it was
+	 * not batched, so receivers can always iterate over the result. Batches come from
+	 * the peer, so a malformed one throws an IllegalArgumentException and the count in
+	 * its header is only trusted as far as the body could actually hold that many.
+	 */
+	public static List<String> unbatch(String message) {
+		if (!isBatch(message)) {
+			return Collections.singletonList(message);
+		}
+
+		String[] parts = WebSocketEnvelope.unwrap(message, BATCH_TYPE, 1);
+		String body = parts[1];
+		// Every record takes at least two characters ("0:")
+		int count = Math.max(0, Math.min(parseLength(parts[0]), body.length() / 2));
+		List<String> messages = new ArrayList<String>(count);
+		int position = 0;
+		while (position < body.length()) {
+			int colon = body.indexOf(':', position);
+			if (colon < 0) {
+				throw new IllegalArgumentException("Malformed message batch at position " + position);
+			}
+			int length = parseLength(body.substring(position, colon));
+			if (length > body.length() - colon - 1) {
+				throw new IllegalArgumentException("Malformed message batch, record exceeds batch length.");
+			}
+			int end = colon + 1 + length;
+			messages.add(body.substring(colon + 1, end));
+			position = end;
+		}
+		return messages;
+	}
+
+	private static int parseLength(String value) {
+		int length;
+		try {
+			length = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed message batch, invalid length " + value);
+		}
+		if (length < 0) {
+			throw new IllegalArgumentException("Malformed message batch, negative length " + value);
+		}
+		return length;
+	}
+}
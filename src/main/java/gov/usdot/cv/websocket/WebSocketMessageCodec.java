@@ -0,0 +1,29 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+/**
+ * Converts between wire messages and typed objects. A codec is either text or binary,
+ * which decides which encode method WebSocketCodecProcessor uses for outbound messages;
+ * the other one may throw. Binary messages are handed to decode(ByteBuffer) wrapping
+ * the received payload, without a copy.
+ */
+public interface WebSocketMessageCodec<T> {
+
+	public boolean isBinary();
+
+	public T decode(String message) throws IOException;
+
+	public T decode(ByteBuffer message) throws IOException;
+
+	public String encodeText(T message) throws IOException;
+
+	/**
+	 * Encodes into a buffer acquired from bufferPool, flipped and ready to send.
+	 * The caller releases it back to the pool once it has been sent.
+	 */
+	public ByteBuffer encodeBinary(T message, ByteBufferPool bufferPool) throws IOException;
+}
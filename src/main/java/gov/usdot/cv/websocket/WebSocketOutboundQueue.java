@@ -0,0 +1,117 @@
+package gov.usdot.cv.websocket;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Base for outbound queues that keep a single write in flight per socket. Subclasses
+ * hold the pending messages and pick the next frame in poll(); this class runs the
+ * writes. Writes that complete on the calling thread are picked up by the drain loop
+ * rather than by recursing from the callback, so a long backlog cannot overflow the
+ * stack. Subclasses synchronize on the queue itself.
+ */
+public abstract class WebSocketOutboundQueue {
+
+	private static final Logger logger = Logger.getLogger(WebSocketOutboundQueue.class);
+
+	protected final BaseWebSocket socket;
+	private boolean writing = false;
+	private boolean sending = false;
+	private boolean completedInline = false;
+
+	private final WriteCallback writeCallback = new WriteCallback() {
+		public void writeSuccess() {
+			writeComplete(true);
+		}
+
+		public void writeFailed(Throwable t) {
+			logger.warn("Failed to send queued message to " + socket + ": " + t);
+			writeComplete(false);
+		}
+	};
+
+	protected WebSocketOutboundQueue(BaseWebSocket socket) {
+		this.socket = socket;
+	}
+
+	public synchronized boolean isIdle() {
+		return !writing;
+	}
+
+	/**
+	 * Returns the next frame to write, or null when nothing is pending. Called while
+	 * holding the lock.
+	 */
+	protected abstract String poll();
+
+	/**
+	 * Called while holding the lock once the frame in flight has been written or has
+	 * failed.
+	 */
+	protected void written(boolean success) {
+	}
+
+	/**
+	 * Claims the writer for a frame the caller will pass to drain(). Returns false if a
+	 * write is already in flight, in which case the frame must be queued instead. Called
+	 * while holding the lock.
+	 */
+	protected boolean startWriting() {
+		if (writing) {
+			return false;
+		}
+		writing = true;
+		return true;
+	}
+
+	/**
+	 * Writes the frame claimed with startWriting() and then everything poll() returns
+	 * for as long as writes complete inline. Called without holding the lock.
+	 */
+	protected void drain(String frame) {
+		while (frame != null) {
+			synchronized (this) {
+				sending = true;
+				completedInline = false;
+			}
+			try {
+				socket.sendFrame(frame, writeCallback);
+			} catch (RuntimeException e) {
+				logger.warn("Failed to send queued message to " + socket + ": " + e);
+				synchronized (this) {
+					written(false);
+					completedInline = true;
+				}
+			}
+			synchronized (this) {
+				sending = false;
+				if (!completedInline) {
+					return;
+				}
+				frame = next();
+			}
+		}
+	}
+
+	private void writeComplete(boolean success) {
+		String frame;
+		synchronized (this) {
+			written(success);
+			if (sending) {
+				completedInline = true;
+				return;
+			}
+			frame = next();
+		}
+		drain(frame);
+	}
+
+	// Must be called while holding the lock.
+	private String next() {
+		String frame = poll();
+		if (frame == null) {
+			writing = false;
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,156 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Outbound queue for a single socket with one lane per MessagePriority. Only one write
+ * is in flight at a time and the next frame is always taken from the highest lane that
+ * has anything pending, so a high priority message waits at most for the frame already
+ * on the wire. Lanes hold up to maxPending messages each. With maxBatchSize set,
+ * messages that queued up in a lane while a write was in flight leave as one batch.
+ * Latency is measured per lane from offer to write completion.
+ */
+public class WebSocketPriorityQueue extends WebSocketOutboundQueue {
+
+	private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+	private final int maxPending;
+	private final int maxBatchSize;
+	private final List<Deque<Entry>> lanes;
+	private List<Entry> inFlight = Collections.emptyList();
+	private MessagePriority inFlightPriority;
+	private final long[] sentCounts = new long[PRIORITIES.length];
+	private final long[] totalLatencies = new long[PRIORITIES.length];
+	private final long[] maxLatencies = new long[PRIORITIES.length];
+
+	public WebSocketPriorityQueue(BaseWebSocket socket, int maxPending, int maxBatchSize) {
+		super(socket);
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("Priority lanes must hold at least 1 message.");
+		}
+		this.maxPending = maxPending;
+		this.maxBatchSize = maxBatchSize;
+		this.lanes = new ArrayList<Deque<Entry>>(PRIORITIES.length);
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			lanes.add(new ArrayDeque<Entry>());
+		}
+	}
+
+	public void offer(MessagePriority priority, String message) throws IOException {
+		Entry entry = new Entry(message, System.nanoTime());
+		synchronized (this) {
+			if (!startWriting()) {
+				Deque<Entry> lane = lanes.get(priority.ordinal());
+				if (lane.size() >= maxPending) {
+					throw new IOException(priority + " priority lane is full.");
+				}
+				lane.add(entry);
+				return;
+			}
+			WebSocketTracer.recordSince(WebSocketTracer.Stage.ENQUEUE_TO_WRITE, entry.offered);
+			inFlight = Collections.singletonList(entry);
+			inFlightPriority = priority;
+		}
+		drain(message);
+	}
+
+	public synchronized int getPendingCount(MessagePriority priority) {
+		return lanes.get(priority.ordinal()).size();
+	}
+
+	public synchronized long getSentCount(MessagePriority priority) {
+		return sentCounts[priority.ordinal()];
+	}
+
+	/**
+	 * Mean time from offer to write completion of the messages sent in the lane, -1 if
+	 * none have been sent yet.
+	 */
+	public synchronized long getAverageLatencyNanos(MessagePriority priority) {
+		int lane = priority.ordinal();
+		return (sentCounts[lane] > 0) ? totalLatencies[lane] / sentCounts[lane] : -1;
+	}
+
+	public synchronized long getMaxLatencyNanos(MessagePriority priority) {
+		return (sentCounts[priority.ordinal()] > 0) ? maxLatencies[priority.ordinal()] : -1;
+	}
+
+	public synchronized void clear() {
+		for (Deque<Entry> lane: lanes) {
+			lane.clear();
+		}
+	}
+
+	@Override
+	protected void written(boolean success) {
+		if (success) {
+			record();
+		}
+		inFlight = Collections.emptyList();
+	}
+
+	// Must be called while holding the lock.
+	private void record() {
+		long now = System.nanoTime();
+		int lane = inFlightPriority.ordinal();
+		for (Entry entry: inFlight) {
+			long latency = now - entry.offered;
+			sentCounts[lane]++;
+			totalLatencies[lane] += latency;
+			if (latency > maxLatencies[lane]) {
+				maxLatencies[lane] = latency;
+			}
+		}
+	}
+
+	@Override
+	protected String poll() {
+		if (!socket.isOpen()) {
+			clear();
+		}
+		for (int i = 0; i < lanes.size(); i++) {
+			Deque<Entry> lane = lanes.get(i);
+			if (lane.isEmpty()) {
+				continue;
+			}
+
+			inFlightPriority = PRIORITIES[i];
+			Entry first = lane.poll();
+			WebSocketTracer.recordSince(WebSocketTracer.Stage.ENQUEUE_TO_WRITE, first.offered);
+			if (maxBatchSize <= 0 || lane.isEmpty() || first.message.length() >= maxBatchSize) {
+				inFlight = Collections.singletonList(first);
+				return first.message;
+			}
+
+			inFlight = new ArrayList<Entry>();
+			inFlight.add(first);
+			List<String> messages = new ArrayList<String>();
+			messages.add(first.message);
+			int size = first.message.length();
+			while (!lane.isEmpty() && size + lane.peek().message.length() <= maxBatchSize) {
+				Entry next = lane.poll();
+				WebSocketTracer.recordSince(WebSocketTracer.Stage.ENQUEUE_TO_WRITE, next.offered);
+				inFlight.add(next);
+				messages.add(next.message);
+				size += next.message.length();
+			}
+			return (messages.size() == 1) ? first.message : WebSocketMessageBatcher.encode(messages);
+		}
+		return null;
+	}
+
+	private static class Entry {
+		private final String message;
+		private final long offered;
+
+		private Entry(String message, long offered) {
+			this.message = message;
+			this.offered = offered;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package gov.usdot.cv.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import gov.usdot.cv.websocket.WebSocketServer.ServerWebSocket;
+
+/**
+ * Ring buffer publishing pipeline for WebSocketServer broadcasts, in the style of the
+ * LMAX Disruptor. Producers claim a sequence, fill the pre-allocated slot for it and
+ * publish it without taking a lock; the ring itself is allocated up front, though the
+ * off-heap encoding and tracing may allocate per message and consumers decode a new
+ * String per off-heap slot. A producer only waits when it would overwrite a slot the
+ * slowest consumer has not read yet, backing off from spinning to parking.
+ * <p>
+ * Idle consumers spin and yield briefly, then block until the next publish signals
+ * them, which costs a publisher a lock only while a consumer is blocked. With busySpin
+ * they never block but keep polling every 50 us, trading CPU for wake-up latency.
+ * <p>
+ * Every consumer thread reads every slot but only delivers to the sessions whose id
+ * falls in its partition (id % consumers), so fan-out runs in parallel while each
+ * session still receives messages in publish order. Consumers take everything that
+ * has been published at once and advance their sequence once per batch.
+ * <p>
+ * With offHeapSlotBytes set, payloads are copied as UTF-8 into slots of a direct
+ * buffer instead of being referenced, so the ring does not keep up to bufferSize
+ * messages alive on the heap. Messages that do not fit a slot are referenced.
+ * <p>
+ * A pipeline can only be started once; WebSocketServer creates a new one on every start.
+ */
+public class WebSocketPublishPipeline {
+
+	private static final Logger logger = Logger.getLogger(WebSocketPublishPipeline.class);
+
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 200;
+	private static final long PARK_NANOS = 50000;
+
+	private final WebSocketSessionRegistry<ServerWebSocket> registry;
+	private final int bufferSize;
+	private final int mask;
+	private final int indexShift;
+	private final String[] messages;
+	private final MessagePriority[] priorities;
+	private final long[] stamps;		// Trace send time of each slot, 0 if untraced
+	private final int[] lengths;		// Encoded length of an off-heap slot, -1 if referenced
+	private final ByteBuffer slots;
+	private final int slotBytes;
+	private final AtomicIntegerArray published;
+	private final AtomicLong claimed = new AtomicLong(-1);
+	private final Consumer[] consumers;
+	private final boolean busySpin;
+	private final Object publishSignal = new Object();
+	private final AtomicInteger blocked = new AtomicInteger();	// Consumers waiting on publishSignal
+	private volatile long gatingCache = -1;	// Slowest consumer as last seen, may lag behind
+	private volatile boolean running = false;
+	private boolean started = false;
+
+	private final ThreadLocal<Encoder> encoder = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+
+	public WebSocketPublishPipeline(WebSocketSessionRegistry<ServerWebSocket> registry, int bufferSize, int consumerThreads, int offHeapSlotBytes) {
+		this(registry, bufferSize, consumerThreads, offHeapSlotBytes, false);
+	}
+
+	public WebSocketPublishPipeline(WebSocketSessionRegistry<ServerWebSocket> registry, int bufferSize, int consumerThreads, int offHeapSlotBytes, boolean busySpin) {
+		if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+			throw new IllegalArgumentException("Publish pipeline buffer size must be a power of 2.");
+		}
+		if (consumerThreads < 1) {
+			throw new IllegalArgumentException("Publish pipeline needs at least 1 consumer thread.");
+		}
+		this.registry = registry;
+		this.busySpin = busySpin;
+		this.bufferSize = bufferSize;
+		this.mask = bufferSize - 1;
+		this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+		this.messages = new String[bufferSize];
+		this.priorities = new MessagePriority[bufferSize];
+		this.stamps = new long[bufferSize];
+		this.lengths = new int[bufferSize];
+		this.slotBytes = Math.max(0, offHeapSlotBytes);
+		this.slots = (slotBytes > 0) ? ByteBuffer.allocateDirect(bufferSize * slotBytes) : null;
+		this.published = new AtomicIntegerArray(bufferSize);
+		for (int i = 0; i < bufferSize; i++) {
+			published.set(i, -1);
+		}
+		this.consumers = new Consumer[consumerThreads];
+		for (int i = 0; i < consumerThreads; i++) {
+			consumers[i] = new Consumer(i);
+		}
+	}
+
+	public synchronized void start() {
+		if (!started) {
+			started = true;
+			running = true;
+			for (Consumer consumer: consumers) {
+				consumer.start();
+			}
+		}
+	}
+
+	/**
+	 * Stops the consumers once they have delivered everything already published.
+	 * Messages published concurrently with the stop may be lost.
+	 */
+	public synchronized void stop() {
+		running = false;
+		synchronized (publishSignal) {
+			publishSignal.notifyAll();
+		}
+		for (Consumer consumer: consumers) {
+			try {
+				consumer.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * True once every consumer has delivered every published message.
+	 */
+	public boolean isIdle() {
+		return minimumConsumerSequence() >= claimed.get();
+	}
+
+	/**
+	 * Returns false without publishing when the pipeline is not running, in which case
+	 * the caller must deliver the message itself.
+	 */
+	public boolean publish(String message, MessagePriority priority) {
+		if (!running) {
+			return false;
+		}
+
+		long sequence = claimed.incrementAndGet();
+		long wrapPoint = sequence - bufferSize;
+		if (wrapPoint > gatingCache) {
+			long minimum;
+			int tries = 0;
+			while (wrapPoint > (minimum = minimumConsumerSequence())) {
+				if (!running) {
+					logger.warn("Publish pipeline stopped while waiting for a free slot, message dropped");
+					return true;
+				}
+				idle(tries++);
+			}
+			gatingCache = minimum;
+		}
+
+		int index = (int)sequence & mask;
+		if (slots == null || !encoder.get().encode(message, index)) {
+			messages[index] = message;
+			lengths[index] = -1;
+		}
+		else {
+			messages[index] = null;
+		}
+		priorities[index] = priority;
+		stamps[index] = WebSocketTracer.stamp();
+		// A full volatile write, so either a consumer about to block sees the slot or
+		// we see that it is blocked
+		published.set(index, (int)(sequence >>> indexShift));
+		if (blocked.get() > 0) {
+			synchronized (publishSignal) {
+				publishSignal.notifyAll();
+			}
+		}
+		return true;
+	}
+
+	private long minimumConsumerSequence() {
+		long minimum = Long.MAX_VALUE;
+		for (Consumer consumer: consumers) {
+			minimum = Math.min(minimum, consumer.sequence.get());
+		}
+		return minimum;
+	}
+
+	private boolean isPublished(long sequence) {
+		return published.get((int)sequence & mask) == (int)(sequence >>> indexShift);
+	}
+
+	// Blocks a consumer until the sequence is published or the pipeline stops
+	private void awaitPublish(long sequence) {
+		synchronized (publishSignal) {
+			blocked.incrementAndGet();
+			try {
+				while (running && !isPublished(sequence)) {
+					publishSignal.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				blocked.decrementAndGet();
+			}
+		}
+	}
+
+	private static void idle(int tries) {
+		if (tries < SPIN_TRIES) {
+			return;
+		}
+		if (tries < SPIN_TRIES + YIELD_TRIES) {
+			Thread.yield();
+		}
+		else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+	// Per producer thread view of the off-heap slots
+	private class Encoder {
+		private final CharsetEncoder charsetEncoder = StandardCharsets.UTF_8.newEncoder();
+		private final ByteBuffer view = slots.duplicate();
+
+		private boolean encode(String message, int index) {
+			int start = index * slotBytes;
+			view.limit(start + slotBytes).position(start);
+			charsetEncoder.reset();
+			CoderResult result = charsetEncoder.encode(CharBuffer.wrap(message), view, true);
+			if (!result.isUnderflow() || !charsetEncoder.flush(view).isUnderflow()) {
+				return false;
+			}
+			lengths[index] = view.position() - start;
+			return true;
+		}
+	}
+
+	private class Consumer extends Thread {
+		private final int partition;
+		private final AtomicLong sequence = new AtomicLong(-1);
+		private final CharsetDecoder decoder;
+		private final CharBuffer decoded;
+		private final ByteBuffer view;
+		private List<ServerWebSocket> sessions = null;
+		private List<ServerWebSocket> targets = Collections.emptyList();
+
+		private Consumer(int partition) {
+			super("WebSocketPublisher-" + partition);
+			setDaemon(true);
+			this.partition = partition;
+			this.decoder = (slots != null) ? StandardCharsets.UTF_8.newDecoder() : null;
+			this.decoded = (slots != null) ? CharBuffer.allocate(slotBytes) : null;
+			this.view = (slots != null) ? slots.duplicate() : null;
+		}
+
+		@Override
+		public void run() {
+			long next = sequence.get() + 1;
+			int tries = 0;
+			while (true) {
+				long last = next - 1;
+				long end = Math.min(claimed.get(), next + bufferSize - 1);
+				while (last < end && isPublished(last + 1)) {
+					last++;
+				}
+
+				if (last < next) {
+					if (!running) {
+						break;
+					}
+					if (busySpin || tries < SPIN_TRIES + YIELD_TRIES) {
+						idle(tries++);
+					}
+					else {
+						awaitPublish(next);
+					}
+					continue;
+				}
+				tries = 0;
+
+				// Whatever fails, the sequence must advance or producers wait on it forever
+				try {
+					List<ServerWebSocket> batchTargets = partition();
+					for (long s = next; s <= last; s++) {
+						try {
+							deliver((int)s & mask, batchTargets);
+						} catch (Throwable t) {
+							logger.error("Failed to deliver published message " + s + ": " + t, t);
+						}
+					}
+				} catch (Throwable t) {
+					logger.error("Failed to deliver published messages " + next + " to " + last + ": " + t, t);
+				} finally {
+					sequence.set(last);
+				}
+				next = last + 1;
+			}
+		}
+
+		// Sessions are only cached once they all have ids; one that is still opening is
+		// picked up on a later batch.
+		private List<ServerWebSocket> partition() {
+			List<ServerWebSocket> current = registry.sessions();
+			if (current == sessions) {
+				return targets;
+			}
+
+			List<ServerWebSocket> partitioned = new ArrayList<ServerWebSocket>(current.size() / consumers.length + 1);
+			boolean complete = true;
+			for (ServerWebSocket socket: current) {
+				long id = socket.getSessionId();
+				if (id == 0) {
+					complete = false;
+				}
+				else if (id % consumers.length == partition) {
+					partitioned.add(socket);
+				}
+			}
+			sessions = complete ? current : null;
+			targets = partitioned;
+			return partitioned;
+		}
+
+		private void deliver(int index, List<ServerWebSocket> targets) {
+			if (targets.isEmpty()) {
+				return;
+			}
+			String message = (lengths[index] < 0) ? messages[index] : decode(index);
+			MessagePriority priority = priorities[index];
+			String traced = null;
+			for (ServerWebSocket socket: targets) {
+				try {
+					if (socket.isOpen()) {
+						if (socket.isTraced() && stamps[index] != 0) {
+							if (traced == null) {
+								traced = WebSocketTracer.wrap(message, stamps[index]);
+							}
+							socket.send(traced, priority);
+						}
+						else {
+							socket.send(message, priority);
+						}
+					}
+				} catch (Throwable t) {
+					logger.error("Failed to send message to session: " + socket + " error: " + t, t);
+				}
+			}
+		}
+
+		private String decode(int index) {
+			int start = index * slotBytes;
+			view.limit(start + lengths[index]).position(start);
+			decoded.clear();
+			decoder.reset();
+			decoder.decode(view, decoded, true);
+			decoder.flush(decoded);
+			decoded.flip();
+			return decoded.toString();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Numbers the messages published on each topic and keeps the last capacity of them so
+ * a client that reconnects can ask for everything after the last sequence it saw.
+ * Published messages travel as "seq" envelopes (headers topic, epoch and sequence);
+ * clients resume by listing their positions in the RESUME_HEADER of the upgrade
+ * request, or with one "resume" envelope per topic (headers epoch and last sequence,
+ * body topic) on an open connection. The epoch identifies this log, so a client resuming against a restarted
+ * server gets everything retained rather than whatever follows a stale sequence.
+ * A socket that is being caught up does not receive live messages for that topic
+ * until the replay has reached the head of the log, so it sees each sequence once and
+ * in order.
+ */
+public class WebSocketReplayLog {
+
+	private static final Logger logger = Logger.getLogger(WebSocketReplayLog.class);
+
+	public static final String SEQUENCE_TYPE = "seq";
+	public static final String RESUME_TYPE = "resume";
+	/**
+	 * Upgrade request header carrying a reconnecting client's positions, so its topics
+	 * are held back from live delivery before the session is registered. A comma
+	 * separated list of entries made with resumeHeaderEntry.
+	 */
+	public static final String RESUME_HEADER = "X-Replay-Resume";
+
+	/**
+	 * Receives each published message, already framed with its sequence, together with
+	 * the connections that should get it live. Called with the topic locked.
+	 */
+	public interface Delivery<S extends BaseWebSocket> {
+		void deliver(List<S> recipients, String framed);
+	}
+
+	private final int capacity;
+	private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+	private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+
+	public WebSocketReplayLog(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Replay log capacity must be at least 1.");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Appends the message to the topic and hands it, framed with its sequence, to the
+	 * delivery along with the connections that should receive it live, which excludes
+	 * any that are being caught up on this topic. The delivery runs with the topic
+	 * locked so every recipient is handed sequences in order and a resume cannot start
+	 * between the append and the send, so it must only queue the frame, never write it.
+	 */
+	public <S extends BaseWebSocket> void publish(String topic, String message, Collection<S> connections, Delivery<S> delivery) {
+		if (topic.indexOf(WebSocketEnvelope.SEPARATOR) >= 0) {
+			throw new IllegalArgumentException("Topic must not contain the envelope separator.");
+		}
+
+		Topic log = getTopic(topic);
+		synchronized (log) {
+			String framed = log.append(topic, epoch, message);
+			List<S> recipients = new ArrayList<S>(connections.size());
+			for (S connection: connections) {
+				if (!log.resuming.contains(connection)) {
+					recipients.add(connection);
+				}
+			}
+			delivery.deliver(recipients, framed);
+		}
+	}
+
+	public String getEpoch() {
+		return epoch;
+	}
+
+	public long getLastSequence(String topic) {
+		Topic log = topics.get(topic);
+		if (log == null) {
+			return 0;
+		}
+		synchronized (log) {
+			return log.nextSequence - 1;
+		}
+	}
+
+	/**
+	 * Holds back live messages on the topic from the socket until replay catches it up.
+	 * Called before a reconnecting socket can receive live messages, so nothing
+	 * published in between gets ahead of the messages it missed.
+	 */
+	public void hold(BaseWebSocket socket, String topic) {
+		Topic log = getTopic(topic);
+		synchronized (log) {
+			log.resuming.add(socket);
+		}
+	}
+
+	/**
+	 * Sends the socket every retained message on the topic after lastSequence. A
+	 * sequence from another epoch, or one ahead of the log, was numbered by a log that
+	 * has since been replaced, so everything retained is sent. If messages the client
+	 * missed have already been evicted it gets the rest.
+	 */
+	public void replay(BaseWebSocket socket, String topic, String lastEpoch, long lastSequence) throws IOException {
+		Topic log = getTopic(topic);
+		long sent = lastSequence;
+		synchronized (log) {
+			if (!epoch.equals(lastEpoch)) {
+				logger.info("Resume epoch " + lastEpoch + " for topic " + topic + " is not " + epoch + ", replaying all retained messages");
+				sent = 0;
+			}
+			else if (sent >= log.nextSequence) {
+				logger.warn("Resume sequence " + sent + " for topic " + topic + " is ahead of the log, replaying all retained messages");
+				sent = 0;
+			}
+			long oldest = log.nextSequence - log.size;
+			if (sent + 1 < oldest) {
+				logger.warn("Messages " + (sent + 1) + " to " + (oldest - 1) + " for topic " + topic + " are no longer retained");
+			}
+			log.resuming.add(socket);
+		}
+
+		boolean caughtUp = false;
+		try {
+			while (!caughtUp) {
+				List<String> pending;
+				synchronized (log) {
+					pending = log.since(sent);
+					if (pending.isEmpty()) {
+						log.resuming.remove(socket);
+						caughtUp = true;
+					}
+					sent = log.nextSequence - 1;
+				}
+				for (String framed: pending) {
+					socket.sendPublished(framed);
+				}
+			}
+		} finally {
+			if (!caughtUp) {
+				synchronized (log) {
+					log.resuming.remove(socket);
+				}
+			}
+		}
+	}
+
+	public void remove(BaseWebSocket socket) {
+		for (Topic log: topics.values()) {
+			synchronized (log) {
+				log.resuming.remove(socket);
+			}
+		}
+	}
+
+	public static String resumeRequest(String topic, String lastEpoch, long lastSequence) {
+		return WebSocketEnvelope.wrap(RESUME_TYPE, topic, lastEpoch, String.valueOf(lastSequence));
+	}
+
+	public static String resumeHeaderEntry(String topic, String lastEpoch, long lastSequence) {
+		try {
+			return URLEncoder.encode(topic, "UTF-8") + ";" + URLEncoder.encode(lastEpoch, "UTF-8") + ";" + lastSequence;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Splits a RESUME_HEADER value into topic, epoch and last sequence triples. Throws
+	 * IllegalArgumentException if any entry is malformed.
+	 */
+	public static List<String[]> parseResumeHeader(String header) {
+		List<String[]> positions = new ArrayList<String[]>();
+		if (header == null || header.trim().isEmpty()) {
+			return positions;
+		}
+		try {
+			for (String entry: header.split(",")) {
+				String[] parts = entry.trim().split(";");
+				if (parts.length != 3) {
+					throw new IllegalArgumentException("Malformed resume entry " + entry);
+				}
+				Long.parseLong(parts[2]);
+				positions.add(new String[] { URLDecoder.decode(parts[0], "UTF-8"), URLDecoder.decode(parts[1], "UTF-8"), parts[2] });
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return positions;
+	}
+
+	private Topic getTopic(String topic) {
+		Topic log = topics.get(topic);
+		if (log == null) {
+			log = new Topic(capacity);
+			Topic existing = topics.putIfAbsent(topic, log);
+			if (existing != null) {
+				log = existing;
+			}
+		}
+		return log;
+	}
+
+	// Fixed size ring of framed messages; the oldest has sequence nextSequence - size.
+	private static class Topic {
+		private final String[] messages;
+		private final Set<BaseWebSocket> resuming = new HashSet<BaseWebSocket>();
+		private long nextSequence = 1;
+		private int size = 0;
+
+		private Topic(int capacity) {
+			this.messages = new String[capacity];
+		}
+
+		private String append(String topic, String epoch, String message) {
+			long sequence = nextSequence++;
+			String framed = WebSocketEnvelope.wrap(SEQUENCE_TYPE, message, topic, epoch, String.valueOf(sequence));
+			messages[(int)(sequence % messages.length)] = framed;
+			if (size < messages.length) {
+				size++;
+			}
+			return framed;
+		}
+
+		private List<String> since(long sequence) {
+			long first = Math.max(sequence + 1, nextSequence - size);
+			if (first >= nextSequence) {
+				return Collections.emptyList();
+			}
+			List<String> framed = new ArrayList<String>((int)(nextSequence - first));
+			for (long s = first; s < nextSequence; s++) {
+				framed.add(messages[(int)(s % messages.length)]);
+			}
+			return framed;
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package gov.usdot.cv.websocket;
+
+public interface WebSocketRequestHandler {
+
+	/**
+	 * Returns the response to send back for the request. An exception is returned to
+	 * the requester as a failed request.
+	 */
+	public String handleRequest(BaseWebSocket socket, String request) throws Exception;
+}
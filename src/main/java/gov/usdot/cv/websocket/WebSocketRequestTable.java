@@ -0,0 +1,139 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Correlates responses with outstanding requests so any number of requests can be in
+ * flight on one connection. Requests travel as "req" envelopes and are answered with
+ * "rsp" or "err" envelopes, each carrying the request id as their only header.
+ */
+public class WebSocketRequestTable {
+
+	private static final Logger logger = Logger.getLogger(WebSocketRequestTable.class);
+
+	public static final String REQUEST_TYPE = "req";
+	public static final String RESPONSE_TYPE = "rsp";
+	public static final String ERROR_TYPE = "err";
+
+	private final AtomicLong nextId = new AtomicLong();
+	private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<Long, PendingRequest>();
+
+	/**
+	 * Registers a new request and returns its id; the future fails with a
+	 * TimeoutException if no response arrives within the timeout. Timeouts complete
+	 * the future on the common fork join pool, so stages chained onto it never run on,
+	 * or hold up, the shared WebSocketScheduler threads.
+	 */
+	public long register(CompletableFuture<String> future, long timeout, TimeUnit unit) {
+		final long id = nextId.incrementAndGet();
+		PendingRequest request = new PendingRequest(future);
+		pending.put(id, request);
+		request.timeoutTask = WebSocketScheduler.schedule(new Runnable() {
+			public void run() {
+				final PendingRequest expired = pending.remove(id);
+				if (expired != null) {
+					ForkJoinPool.commonPool().execute(new Runnable() {
+						public void run() {
+							expired.future.completeExceptionally(new TimeoutException("No response to request " + id));
+						}
+					});
+				}
+			}
+		}, timeout, unit);
+		return id;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public void fail(long id, Throwable cause) {
+		PendingRequest request = pending.remove(id);
+		if (request != null) {
+			request.cancelTimeout();
+			request.future.completeExceptionally(cause);
+		}
+	}
+
+	public void failAll(Throwable cause) {
+		for (Long id: pending.keySet()) {
+			fail(id, cause);
+		}
+	}
+
+	/**
+	 * Completes the request a response or error envelope refers to. Responses to
+	 * requests that have already timed out, and malformed ones, are ignored.
+	 */
+	public void complete(String envelope) {
+		try {
+			if (WebSocketEnvelope.isType(envelope, RESPONSE_TYPE)) {
+				String[] parts = WebSocketEnvelope.unwrap(envelope, RESPONSE_TYPE, 1);
+				PendingRequest request = pending.remove(Long.valueOf(parts[0]));
+				if (request != null) {
+					request.cancelTimeout();
+					request.future.complete(parts[1]);
+				}
+			}
+			else {
+				String[] parts = WebSocketEnvelope.unwrap(envelope, ERROR_TYPE, 1);
+				fail(Long.parseLong(parts[0]), new IOException("Request failed: " + parts[1]));
+			}
+		} catch (IllegalArgumentException e) {
+			logger.warn("Ignoring invalid response: " + e.getMessage());
+		}
+	}
+
+	public static boolean isResponse(String message) {
+		return WebSocketEnvelope.isType(message, RESPONSE_TYPE) || WebSocketEnvelope.isType(message, ERROR_TYPE);
+	}
+
+	public static boolean isRequest(String message) {
+		return WebSocketEnvelope.isType(message, REQUEST_TYPE);
+	}
+
+	public static String request(long id, String message) {
+		return WebSocketEnvelope.wrap(REQUEST_TYPE, message, String.valueOf(id));
+	}
+
+	/**
+	 * Runs a request envelope through the handler and returns the response or error
+	 * envelope to send back.
+	 */
+	public static String handle(WebSocketRequestHandler handler, BaseWebSocket socket, String envelope) {
+		String[] parts = WebSocketEnvelope.unwrap(envelope, REQUEST_TYPE, 1);
+		try {
+			String response = handler.handleRequest(socket, parts[1]);
+			return WebSocketEnvelope.wrap(RESPONSE_TYPE, (response != null) ? response : "", parts[0]);
+		} catch (Exception e) {
+			return WebSocketEnvelope.wrap(ERROR_TYPE, String.valueOf(e), parts[0]);
+		}
+	}
+
+	private static class PendingRequest {
+		private final CompletableFuture<String> future;
+		// Set just after the request is registered, so a fast response may find it unset
+		private volatile ScheduledFuture<?> timeoutTask;
+
+		private PendingRequest(CompletableFuture<String> future) {
+			this.future = future;
+		}
+
+		private void cancelTimeout() {
+			ScheduledFuture<?> task = timeoutTask;
+			if (task != null) {
+				task.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package gov.usdot.cv.websocket;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared timer for all sockets in the JVM, so per session work such as batch flushes
+ * does not need a thread or timer of its own. Tasks must be short.
+ */
+class WebSocketScheduler {
+
+	private static final int THREAD_COUNT = 2;
+	private static final ScheduledThreadPoolExecutor scheduler;
+
+	static {
+		scheduler = new ScheduledThreadPoolExecutor(THREAD_COUNT, new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "WebSocketScheduler-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	private WebSocketScheduler() { }
+
+	static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return scheduler.schedule(task, delay, unit);
+	}
+
+	static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+		return scheduler.scheduleAtFixedRate(task, initialDelay, period, unit);
+	}
+}
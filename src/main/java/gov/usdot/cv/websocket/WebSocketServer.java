@@ -2,19 +2,25 @@ package gov.usdot.cv.websocket;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
@@ -22,19 +28,26 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.NetworkConnector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.SuspendToken;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
 import gov.usdot.cv.resources.PrivateResourceLoader;
@@ -43,9 +56,50 @@ public class WebSocketServer {
 
 	private static final Logger logger = Logger.getLogger(WebSocketServer.class);
 	
+	// Close reason prefix telling clients how long to wait before reconnecting
+	public static final String RECONNECT_AFTER = "reconnect-after=";
+	
+	public enum RateLimitPolicy {
+		PAUSE,		// Stop reading from the session until it is back within its limits
+		DROP,		// Discard messages that exceed the limits
+		CLOSE		// Close the session with a policy violation
+	}
+	
 	private Server server;
 	private static List<WebSocketMessageProcessor> messageProcessors = new CopyOnWriteArrayList<WebSocketMessageProcessor>();
-	private static final Map<String, ServerWebSocket> webSocketConnectionMap = new ConcurrentHashMap<String, ServerWebSocket>(16, 0.9f, 1);
+	private static final WebSocketSessionRegistry<ServerWebSocket> sessionRegistry = new WebSocketSessionRegistry<ServerWebSocket>();
+	private static long maxBatchDelay = 0;
+	private static int maxBatchSize = 0;
+	private static int maxPendingPerLane = 0;
+	// Published frames a connection without priority lanes may have queued
+	private static final int PUBLISH_BACKLOG = 1024;
+	private static int pipelineBufferSize = 0;
+	private static int pipelineConsumers = 0;
+	private static int pipelineSlotBytes = 0;
+	private static boolean pipelineBusySpin = false;
+	private static volatile WebSocketPublishPipeline publishPipeline;
+	private static int maxConnections = 0;
+	private static int maxConnectionsPerAddress = 0;
+	private static double messagesPerSecond = 0;
+	private static int messageBurst = 0;
+	private static double bytesPerSecond = 0;
+	private static int byteBurst = 0;
+	private static RateLimitPolicy rateLimitPolicy = RateLimitPolicy.PAUSE;
+	private static WebSocketHeartbeat heartbeat;
+	private static WebSocketReplayLog replayLog;
+	private static WebSocketRequestHandler requestHandler;
+	private static int requestThreads = Runtime.getRuntime().availableProcessors();
+	private static int maxPendingRequests = 1024;
+	private static ThreadPoolExecutor requestExecutor;
+	private static volatile boolean shuttingDown = false;
+	private static int admittedConnections = 0;
+	private static final Map<String, Integer> admittedPerAddress = new HashMap<String, Integer>();
+	
+	// How long an admitted upgrade has to open before its connection slot is released
+	private static final long ADMISSION_TIMEOUT = 30000;
+	private static final int ADMISSION_PENDING = 0;
+	private static final int ADMISSION_OPEN = 1;
+	private static final int ADMISSION_RELEASED = 2;
 	
 	public WebSocketServer(int port) {
 		this(port, null);
@@ -71,11 +125,33 @@ public class WebSocketServer {
 			server = new Server(wildcardInetAddress);
 		}
 		
-		// Register our WebSocket Class to be used by the the server
+		// Register our WebSocket Class to be used by the the server, turning away upgrades
+		// that would exceed the connection limits before a session is created
 		WebSocketHandler wsHandler = new WebSocketHandler() {
 			@Override
 			public void configure(WebSocketServletFactory factory) {
-				factory.register(ServerWebSocket.class);
+				factory.setCreator(new WebSocketCreator() {
+					public Object createWebSocket(ServletUpgradeRequest request, ServletUpgradeResponse response) {
+						String rejection = admit(request.getRemoteAddress());
+						if(rejection != null) {
+							logger.warn("Rejected WebSocket connection from " + request.getRemoteAddress() + ": " + rejection);
+							try {
+								response.sendError(503, rejection);
+							} catch (IOException e) {
+								logger.warn("Failed to send rejection to " + request.getRemoteAddress(), e);
+							}
+							return null;
+						}
+						final ServerWebSocket socket = new ServerWebSocket(request.getRemoteAddress());
+						// Nothing is called back if the upgrade fails after this point
+						WebSocketScheduler.schedule(new Runnable() {
+							public void run() {
+								socket.releaseAdmission(true);
+							}
+						}, ADMISSION_TIMEOUT, TimeUnit.MILLISECONDS);
+						return socket;
+					}
+				});
 			}
 		};
 		server.setHandler(wsHandler);
@@ -83,6 +159,14 @@ public class WebSocketServer {
 	
 	public void start() {
 		try {
+			shuttingDown = false;
+			if(heartbeat != null) {
+				heartbeat.start();
+			}
+			if(pipelineBufferSize > 0) {
+				publishPipeline = new WebSocketPublishPipeline(sessionRegistry, pipelineBufferSize, pipelineConsumers, pipelineSlotBytes, pipelineBusySpin);
+				publishPipeline.start();
+			}
 			server.start();
 		} catch (Exception e) {
 			logger.error("Failed to start WebSocket Server.", e);
@@ -91,28 +175,337 @@ public class WebSocketServer {
 	
 	public void stop() {
 		try {
+			if(heartbeat != null) {
+				heartbeat.stop();
+			}
+			if(publishPipeline != null) {
+				publishPipeline.stop();
+				publishPipeline = null;
+			}
 			server.stop();
+			stopRequestExecutor();
 			messageProcessors.clear();
 		} catch (Exception e) {
 			logger.error("Failed to stop WebSocket Server.", e);
 		}
 	}
 	
+	/**
+	 * Stops the server without dropping in-flight messages or causing a reconnect storm:
+	 * <ol>
+	 * <li>stops accepting new connections</li>
+	 * <li>flushes batched and conflated messages, waiting at most drainTimeout ms</li>
+	 * <li>closes the connections spread evenly over staggerWindow ms, telling each client
+	 * to wait reconnectDelay ms before reconnecting</li>
+	 * </ol>
+	 * and then stops the server. Blocks until done.
+	 */
+	public void shutdown(long drainTimeout, long reconnectDelay, long staggerWindow) {
+		shuttingDown = true;
+		for(Connector connector : server.getConnectors()) {
+			if(connector instanceof NetworkConnector) {
+				try {
+					((NetworkConnector)connector).close();
+				} catch (Exception e) {
+					logger.warn("Failed to close connector " + connector, e);
+				}
+			}
+		}
+		
+		logger.info("Shutting down, draining " + sessionRegistry.size() + " connections");
+		drain(System.currentTimeMillis() + drainTimeout);
+		
+		List<ServerWebSocket> sockets = sessionRegistry.sessions();
+		String reason = reconnectHint(reconnectDelay);
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < sockets.size(); i++) {
+			long closeAt = start + closeOffset(i, sockets.size(), staggerWindow);
+			long wait = closeAt - System.currentTimeMillis();
+			if(wait > 0) {
+				try { Thread.sleep(wait); } catch (InterruptedException ignore) {}
+			}
+			ServerWebSocket socket = sockets.get(i);
+			if(socket.isOpen()) {
+				socket.close(StatusCode.SHUTDOWN, reason);
+			}
+		}
+		
+		// Give the close handshakes a moment to complete before the server goes away
+		long closeDeadline = System.currentTimeMillis() + Math.max(1000, drainTimeout);
+		while(sessionRegistry.size() > 0 && System.currentTimeMillis() < closeDeadline) {
+			try { Thread.sleep(10); } catch (InterruptedException ignore) {}
+		}
+		stop();
+	}
+	
+	/**
+	 * Close reason telling a WebSocketClient to wait reconnectDelay ms before
+	 * reconnecting, see WebSocketClient.parseReconnectHint.
+	 */
+	static String reconnectHint(long reconnectDelay) {
+		return RECONNECT_AFTER + reconnectDelay;
+	}
+	
+	/**
+	 * When, in ms after shutdown starts closing, the index'th of count connections is
+	 * closed: evenly spaced over the stagger window, the first immediately.
+	 */
+	static long closeOffset(int index, int count, long staggerWindow) {
+		return (staggerWindow * index) / count;
+	}
+	
+	private void drain(long deadline) {
+		WebSocketPublishPipeline pipeline = publishPipeline;
+		while(pipeline != null && !pipeline.isIdle() && System.currentTimeMillis() < deadline) {
+			try { Thread.sleep(10); } catch (InterruptedException ignore) {}
+		}
+		flush();
+		boolean drained = false;
+		while(!drained && System.currentTimeMillis() < deadline) {
+			drained = true;
+			for(ServerWebSocket socket : sessionRegistry.sessions()) {
+				WebSocketPriorityQueue lanes = socket.priorityQueue;
+				if(socket.isOpen() && (!socket.conflatingQueue.isIdle() || (lanes != null && !lanes.isIdle()))) {
+					drained = false;
+					break;
+				}
+			}
+			if(!drained) {
+				try { Thread.sleep(10); } catch (InterruptedException ignore) {}
+			}
+		}
+		if(!drained) {
+			logger.warn("Drain timed out, some pending messages may be lost");
+		}
+	}
+	
 	public void addMessageProcessor(WebSocketMessageProcessor messageProcessor) {
 		messageProcessors.add(messageProcessor);
 	}
 	
+	/**
+	 * Answers requests made with WebSocketClient.request. Requests are not passed to
+	 * the message processors.
+	 */
+	public void setRequestHandler(WebSocketRequestHandler requestHandler) {
+		WebSocketServer.requestHandler = requestHandler;
+	}
+	
+	/**
+	 * Answers requests on a pool of threads rather than the connection's read thread,
+	 * so a slow handler holds up neither other requests nor ordinary messages. Up to
+	 * maxPending requests wait for a thread, beyond that they are answered with an error.
+	 * Defaults to a thread per core; pass 0 threads to answer on the read thread.
+	 */
+	public void setRequestThreads(int threads, int maxPending) {
+		stopRequestExecutor();
+		WebSocketServer.requestThreads = threads;
+		WebSocketServer.maxPendingRequests = maxPending;
+	}
+	
+	// Created on the first request, so servers that never see one have no threads
+	private static synchronized ThreadPoolExecutor requestExecutor() {
+		if(requestExecutor == null && requestThreads > 0) {
+			requestExecutor = new ThreadPoolExecutor(requestThreads, requestThreads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, maxPendingRequests)), new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+				
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "WebSocketRequest-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return requestExecutor;
+	}
+	
+	private static synchronized void stopRequestExecutor() {
+		if(requestExecutor != null) {
+			requestExecutor.shutdown();
+			requestExecutor = null;
+		}
+	}
+	
+	/**
+	 * Coalesces outgoing messages per connection into batches of up to maxBatchSize
+	 * characters, holding a message for at most maxBatchDelay ms. Applies to connections
+	 * opened after the call; pass 0 to disable.
+	 */
+	public void setBatching(long maxBatchDelay, int maxBatchSize) {
+		WebSocketServer.maxBatchDelay = maxBatchDelay;
+		WebSocketServer.maxBatchSize = maxBatchSize;
+	}
+	
+	/**
+	 * Gives each connection opened after the call a lane per MessagePriority holding up
+	 * to maxPendingPerLane messages, so high priority messages overtake queued bulk
+	 * traffic. Sends become asynchronous and fail once a lane is full. When batching is
+	 * also set, messages that queue up in a lane are sent together up to maxBatchSize
+	 * characters rather than after maxBatchDelay. Pass 0 to disable.
+	 */
+	public void setPriorityLanes(int maxPendingPerLane) {
+		WebSocketServer.maxPendingPerLane = maxPendingPerLane;
+	}
+	
+	/**
+	 * Hands broadcasts made with sendMessage(message) to a WebSocketPublishPipeline of
+	 * bufferSize slots (a power of 2) whose consumerThreads threads do the fan-out, so
+	 * publishers return as soon as the message is in the ring. With offHeapSlotBytes
+	 * set, payloads of up to that many UTF-8 bytes are held in direct memory. Enable
+	 * priority lanes as well, otherwise each consumer waits on every write in its
+	 * partition. Takes effect on the next start; pass 0 as bufferSize to disable.
+	 */
+	public void setPublishPipeline(int bufferSize, int consumerThreads, int offHeapSlotBytes) {
+		setPublishPipeline(bufferSize, consumerThreads, offHeapSlotBytes, false);
+	}
+	
+	/**
+	 * As above, but with busySpin idle consumer threads keep polling the ring instead of
+	 * blocking until the next publish, for slightly lower latency at the cost of CPU.
+	 */
+	public void setPublishPipeline(int bufferSize, int consumerThreads, int offHeapSlotBytes, boolean busySpin) {
+		WebSocketServer.pipelineBufferSize = bufferSize;
+		WebSocketServer.pipelineConsumers = consumerThreads;
+		WebSocketServer.pipelineSlotBytes = offHeapSlotBytes;
+		WebSocketServer.pipelineBusySpin = busySpin;
+	}
+	
+	/**
+	 * Caps the total number of connections and the number of connections from a single
+	 * remote address. Upgrades beyond either cap are rejected with a 503; 0 means no limit.
+	 * A connection that opens after its reserved slot has timed out is checked again and
+	 * closed with TRY_AGAIN_LATER if the caps have filled up in the meantime.
+	 */
+	public void setConnectionLimits(int maxConnections, int maxConnectionsPerAddress) {
+		WebSocketServer.maxConnections = maxConnections;
+		WebSocketServer.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+	
+	/**
+	 * Limits the inbound message and byte rates of each connection with token buckets
+	 * that allow bursts of up to messageBurst messages and byteBurst bytes. A rate of 0
+	 * disables that limit. Applies to connections opened after the call.
+	 */
+	public void setRateLimits(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst, RateLimitPolicy policy) {
+		WebSocketServer.messagesPerSecond = messagesPerSecond;
+		WebSocketServer.messageBurst = messageBurst;
+		WebSocketServer.bytesPerSecond = bytesPerSecond;
+		WebSocketServer.byteBurst = byteBurst;
+		WebSocketServer.rateLimitPolicy = policy;
+	}
+	
+	/**
+	 * Pings every connection once per interval ms and disconnects those that leave
+	 * missThreshold pings in a row unanswered. Applies to connections opened after the
+	 * call; an interval of 0 disables the heartbeat.
+	 */
+	public void setHeartbeat(long interval, int missThreshold) {
+		if(heartbeat != null) {
+			heartbeat.stop();
+		}
+		if(interval > 0) {
+			heartbeat = new WebSocketHeartbeat(interval, missThreshold);
+			heartbeat.start();
+		}
+		else {
+			heartbeat = null;
+		}
+	}
+	
+	// Reserves a connection slot for the upgrade, so concurrent upgrades cannot all pass
+	// the check before any of them is counted. Returns the reason when there is none.
+	static synchronized String admit(String remoteAddress) {
+		if(shuttingDown) {
+			return "Server is shutting down";
+		}
+		Integer addressCount = admittedPerAddress.get(remoteAddress);
+		if(maxConnections > 0 && admittedConnections >= maxConnections) {
+			return "Connection limit of " + maxConnections + " reached";
+		}
+		if(maxConnectionsPerAddress > 0 && addressCount != null && addressCount >= maxConnectionsPerAddress) {
+			return "Connection limit of " + maxConnectionsPerAddress + " per address reached";
+		}
+		reserve(remoteAddress);
+		return null;
+	}
+	
+	private static synchronized void reserve(String remoteAddress) {
+		Integer addressCount = admittedPerAddress.get(remoteAddress);
+		admittedPerAddress.put(remoteAddress, (addressCount != null) ? addressCount + 1 : 1);
+		admittedConnections++;
+	}
+	
+	private static synchronized void release(String remoteAddress) {
+		Integer addressCount = admittedPerAddress.get(remoteAddress);
+		if(addressCount == null || addressCount <= 1) {
+			admittedPerAddress.remove(remoteAddress);
+		}
+		else {
+			admittedPerAddress.put(remoteAddress, addressCount - 1);
+		}
+		admittedConnections--;
+	}
+	
+	// Connection slots in use, from any address when remoteAddress is null
+	static synchronized int admittedCount(String remoteAddress) {
+		if(remoteAddress == null) {
+			return admittedConnections;
+		}
+		Integer addressCount = admittedPerAddress.get(remoteAddress);
+		return (addressCount != null) ? addressCount : 0;
+	}
+	
+	public void flush() {
+		for(ServerWebSocket socket : sessionRegistry.sessions()) {
+			try {
+				socket.flush();
+			} catch (IOException e) {
+				logger.error("Failed to flush messages to session: " + socket.webSocketID + " error: " + e, e);
+			}
+		}
+	}
+	
 	public void sendMessage(String message) {
-		for(ServerWebSocket socket : webSocketConnectionMap.values()) {
-			sendMessage(socket, message);
+		sendMessage(message, MessagePriority.NORMAL);
+	}
+	
+	public void sendMessage(String message, MessagePriority priority) {
+		WebSocketPublishPipeline pipeline = publishPipeline;
+		if(message != null && pipeline != null && pipeline.publish(message, priority)) {
+			return;
+		}
+		String traced = WebSocketTracer.wrap(message);
+		for(ServerWebSocket socket : sessionRegistry.sessions()) {
+			deliver(socket, message, traced, priority);
+		}
+	}
+	
+	public void sendMessage(Collection<ServerWebSocket> sockets, String message) {
+		sendMessage(sockets, message, MessagePriority.NORMAL);
+	}
+	
+	public void sendMessage(Collection<ServerWebSocket> sockets, String message, MessagePriority priority) {
+		String traced = WebSocketTracer.wrap(message);
+		for(ServerWebSocket socket : sockets) {
+			deliver(socket, message, traced, priority);
 		}
 	}
 	
 	public void sendMessage(BaseWebSocket socket, String message) {
+		sendMessage(socket, message, MessagePriority.NORMAL);
+	}
+	
+	public void sendMessage(BaseWebSocket socket, String message, MessagePriority priority) {
+		deliver(socket, message, WebSocketTracer.wrap(message), priority);
+	}
+	
+	// The traced copy only goes to connections that asked for trace envelopes
+	private void deliver(BaseWebSocket socket, String message, String traced, MessagePriority priority) {
 		if(message != null) {
 			if(socket.isOpen()) {
 				try {
-					socket.send(message);
+					socket.send(acceptsTrace(socket) ? traced : message, priority);
 				} catch (Exception e) {
 					logger.error("Failed to send message to session: " + ((ServerWebSocket)socket).webSocketID + " error: " + e , e);
 				}
@@ -123,16 +516,206 @@ public class WebSocketServer {
 		}
 	}
 	
+	private static boolean acceptsTrace(BaseWebSocket socket) {
+		return socket instanceof ServerWebSocket && ((ServerWebSocket)socket).isTraced();
+	}
+	
+	/**
+	 * Sends a "current state" message for the given key to every connection. When a
+	 * connection is still writing, a pending message for the same key is replaced rather
+	 * than queued behind it, so lagging subscribers skip straight to the latest value.
+	 */
+	public void sendConflatedMessage(String key, String message) {
+		for(ServerWebSocket socket : sessionRegistry.sessions()) {
+			sendConflatedMessage(socket, key, message);
+		}
+	}
+	
+	public void sendConflatedMessage(ServerWebSocket socket, String key, String message) {
+		if(message != null) {
+			if(socket.isOpen()) {
+				socket.conflatingQueue.offer(key, message);
+			}
+			else {
+				logger.warn("WebSocket connection " + socket.webSocketID + " is closed");
+			}
+		}
+	}
+	
+	/**
+	 * Keeps the last capacity messages published on each topic so reconnecting clients
+	 * can resume from the last sequence they saw instead of resyncing. 0 disables it.
+	 */
+	public void setReplayCapacity(int capacity) {
+		replayLog = (capacity > 0) ? new WebSocketReplayLog(capacity) : null;
+	}
+	
+	/**
+	 * Sends a message on a topic to every connection, numbered so clients can resume the
+	 * topic after a reconnect. Without a replay log this is the same as sendMessage.
+	 * Messages are queued on each connection without waiting for the write, in its
+	 * NORMAL priority lane if it has lanes. A connection that falls more than a full
+	 * lane, or 1024 messages without lanes, behind is closed with TRY_AGAIN_LATER so
+	 * it catches up from the replay log when it reconnects.
+	 */
+	public void publish(String topic, String message) {
+		if(message == null) {
+			return;
+		}
+		WebSocketReplayLog log = replayLog;
+		if(log == null) {
+			sendMessage(message);
+			return;
+		}
+		
+		log.publish(topic, message, sessionRegistry.sessions(), new WebSocketReplayLog.Delivery<ServerWebSocket>() {
+			public void deliver(List<ServerWebSocket> recipients, String framed) {
+				String traced = WebSocketTracer.wrap(framed);
+				for(ServerWebSocket socket : recipients) {
+					if(socket.isOpen()) {
+						try {
+							socket.sendPublished(socket.isTraced() ? traced : framed);
+						} catch (IOException e) {
+							logger.debug("Failed to publish message to session: " + socket.webSocketID + " error: " + e);
+						}
+					}
+				}
+			}
+		});
+	}
+	
 	public Collection<ServerWebSocket> connections() {
-		return webSocketConnectionMap.values();
+		return sessionRegistry.sessions();
+	}
+	
+	/**
+	 * Connections whose indexed attribute has the given value, for example
+	 * WebSocketSessionRegistry.REMOTE_HOST or PRINCIPAL, or one set with
+	 * ServerWebSocket.setAttribute.
+	 */
+	public Collection<ServerWebSocket> connections(String attribute, Object value) {
+		return sessionRegistry.find(attribute, value);
+	}
+	
+	public ServerWebSocket getConnection(long sessionId) {
+		return sessionRegistry.get(sessionId);
 	}
 	
 	@WebSocket
 	public static class ServerWebSocket extends BaseWebSocket {
 		private String webSocketID;
+		private final WebSocketConflatingQueue conflatingQueue = new WebSocketConflatingQueue(this);
+		private volatile long sessionId;
+		private WebSocketTokenBucket messageBucket;
+		private WebSocketTokenBucket byteBucket;
+		private RateLimitPolicy policy;
+		private final String admittedAddress;
+		private final AtomicInteger admission = new AtomicInteger(ADMISSION_PENDING);
+		private WebSocketPriorityQueue publishQueue;
+		private volatile boolean traced;
 		
 		// Required for reflection
-		public ServerWebSocket() { }
+		public ServerWebSocket() {
+			this(null);
+		}
+		
+		ServerWebSocket(String admittedAddress) {
+			this.admittedAddress = admittedAddress;
+		}
+		
+		public int getConflatedPendingCount() {
+			return conflatingQueue.getPendingCount();
+		}
+		
+		public long getConflatedCount() {
+			return conflatingQueue.getConflatedCount();
+		}
+		
+		public long getSessionId() {
+			return sessionId;
+		}
+		
+		// Indexed, so connections can be looked up by it with WebSocketServer.connections
+		public void setAttribute(String name, Object value) {
+			sessionRegistry.setAttribute(sessionId, name, value);
+		}
+		
+		public Object getAttribute(String name) {
+			return sessionRegistry.getAttribute(sessionId, name);
+		}
+		
+		@Override
+		public String toString() {
+			return webSocketID;
+		}
+		
+		/**
+		 * Whether messages to this connection are sent in trace envelopes while tracing is
+		 * enabled. Negotiated with the X-WebSocket-Trace upgrade header, or set here for
+		 * subscribers that can unwrap them.
+		 */
+		public boolean isTraced() {
+			return traced;
+		}
+		
+		public void setTraced(boolean traced) {
+			this.traced = traced;
+		}
+		
+		// Published frames share the priority lanes when there are any
+		void enablePublishQueue(int backlog, int maxBatchSize) {
+			publishQueue = (priorityQueue != null) ? priorityQueue : new WebSocketPriorityQueue(this, backlog, maxBatchSize);
+		}
+		
+		void close(int statusCode, String reason) {
+			session.close(statusCode, reason);
+		}
+		
+		// Queues the frame rather than writing it, since live frames are handed over with
+		// the topic locked. One that cannot keep up is closed and resumes on reconnect.
+		@Override
+		protected void sendPublished(String frame) throws IOException {
+			WebSocketPriorityQueue queue = publishQueue;
+			if(queue == null) {
+				super.sendPublished(frame);
+				return;
+			}
+			try {
+				queue.offer(MessagePriority.NORMAL, frame);
+			} catch (IOException e) {
+				logger.warn(webSocketID + " fell too far behind on published messages, closing it so it resumes from the replay log");
+				close(StatusCode.TRY_AGAIN_LATER, "Too far behind");
+				throw e;
+			}
+		}
+		
+		// Gives back the connection slot reserved by the upgrade, at most once. An expired
+		// reservation is only released if the connection never opened.
+		void releaseAdmission(boolean expired) {
+			if(admittedAddress == null) {
+				return;
+			}
+			boolean released = expired
+					? admission.compareAndSet(ADMISSION_PENDING, ADMISSION_RELEASED)
+					: admission.getAndSet(ADMISSION_RELEASED) != ADMISSION_RELEASED;
+			if(released) {
+				release(admittedAddress);
+			}
+		}
+		
+		// Takes up the reservation when the connection opens. One that opens after its
+		// reservation expired has to be admitted again, so the caps still hold; returns
+		// the reason if it is not.
+		String openAdmission() {
+			if(admission.compareAndSet(ADMISSION_PENDING, ADMISSION_OPEN) || admittedAddress == null) {
+				return null;
+			}
+			String rejection = admit(admittedAddress);
+			if(rejection == null) {
+				admission.set(ADMISSION_OPEN);
+			}
+			return rejection;
+		}
 		
 		@OnWebSocketConnect
 		public void onOpen(Session session) {
@@ -141,38 +724,221 @@ public class WebSocketServer {
 												session.getRemoteAddress().toString().split("/")[1]);
 			this.session = session;
 			this.session.setIdleTimeout(0);		// Don't timeout
-			
+			String rejection = openAdmission();
+			if(rejection != null) {
+				logger.warn(webSocketID + " opened after its admission expired and was rejected: " + rejection);
+				close(StatusCode.TRY_AGAIN_LATER, rejection);
+				return;
+			}
+			enableBatching(maxBatchDelay, maxBatchSize);
+			enablePriorityLanes(maxPendingPerLane, maxBatchSize);
+			enablePublishQueue(PUBLISH_BACKLOG, maxBatchSize);
+			enableRateLimits();
+			startHeartbeat(WebSocketServer.heartbeat);
+			traced = Boolean.parseBoolean(session.getUpgradeRequest().getHeader(WebSocketTracer.TRACE_HEADER));
 			logger.info(webSocketID + " connected");
-			webSocketConnectionMap.put(webSocketID, this);
-			logger.info("WebSocket connection count is " + webSocketConnectionMap.size());
+			// Hold back the topics being resumed before live delivery can reach us
+			WebSocketReplayLog log = replayLog;
+			List<String[]> positions = holdResumedTopics(log, session.getUpgradeRequest().getHeader(WebSocketReplayLog.RESUME_HEADER));
+			sessionId = sessionRegistry.register(this);
+			sessionRegistry.setAttribute(sessionId, WebSocketSessionRegistry.REMOTE_HOST, session.getRemoteAddress().getAddress().getHostAddress());
+			if(session.getUpgradeRequest().getUserPrincipal() != null) {
+				sessionRegistry.setAttribute(sessionId, WebSocketSessionRegistry.PRINCIPAL, session.getUpgradeRequest().getUserPrincipal().getName());
+			}
+			logger.info("WebSocket connection count is " + sessionRegistry.size());
+			for (String[] position: positions) {
+				replay(log, position[0], position[1], Long.parseLong(position[2]));
+			}
+		}
+		
+		private List<String[]> holdResumedTopics(WebSocketReplayLog log, String header) {
+			if (header == null) {
+				return Collections.emptyList();
+			}
+			if (log == null) {
+				logger.warn(webSocketID + " requested a replay but no replay log is configured");
+				return Collections.emptyList();
+			}
+			try {
+				List<String[]> positions = WebSocketReplayLog.parseResumeHeader(header);
+				for (String[] position: positions) {
+					log.hold(this, position[0]);
+				}
+				return positions;
+			} catch (IllegalArgumentException e) {
+				logger.warn(webSocketID + " sent an invalid resume header: " + e.getMessage());
+				return Collections.emptyList();
+			}
 		}
 
-		public void send(String message) throws IOException {
-			if(isOpen()) {
-				try {
-					// If messages are attempted to be sent by multiple threads(for example, multiple clients)
-					// to the same RemoteEndpoint, it can lead to blocking and throws the error:
-					//     java.lang.IllegalStateException: Blocking message pending 10000 for BLOCKING
-					// To alleviate this, use asynchronous, non-blocking methods that require us to check
-					// if the send was successful.
-					// https://bugs.eclipse.org/bugs/show_bug.cgi?id=474488
-					Future<Void> sendFuture = session.getRemote().sendStringByFuture(message);
-					sendFuture.get(3, TimeUnit.SECONDS);	// Wait for completion
-				} catch (Exception e) {
-					throw new IOException("Message failed to send.", e);
+		void enableRateLimits() {
+			if(messagesPerSecond > 0) {
+				messageBucket = new WebSocketTokenBucket(messagesPerSecond, Math.max(1, messageBurst));
+			}
+			if(bytesPerSecond > 0) {
+				byteBucket = new WebSocketTokenBucket(bytesPerSecond, Math.max(1, byteBurst));
+			}
+			policy = rateLimitPolicy;
+		}
+		
+		// Charges count messages and size bytes; returns false when they must not be processed
+		private boolean checkRateLimits(int count, int size) {
+			if(policy == RateLimitPolicy.PAUSE) {
+				// The message has already been read so let it through, then hold off
+				// reading until the session has paid back whatever it overdrew. Jetty
+				// finishes parsing the bytes it has already received before it stops.
+				long pauseNanos = 0;
+				if(messageBucket != null) {
+					pauseNanos = messageBucket.consume(count);
 				}
+				if(byteBucket != null) {
+					pauseNanos = Math.max(pauseNanos, byteBucket.consume(size));
+				}
+				if(pauseNanos > 0) {
+					logger.debug(webSocketID + " exceeded rate limits, pausing reads for " + TimeUnit.NANOSECONDS.toMillis(pauseNanos) + " ms");
+					pauseReads(pauseNanos);
+				}
+				return true;
 			}
-			else {
-				throw new IOException("No session is open.");
+			
+			boolean allowed = (messageBucket == null || messageBucket.tryConsume(count))
+								&& (byteBucket == null || byteBucket.tryConsume(size));
+			if(!allowed) {
+				if(policy == RateLimitPolicy.CLOSE) {
+					logger.warn(webSocketID + " exceeded rate limits, closing connection");
+					close(StatusCode.POLICY_VIOLATION, "Rate limit exceeded");
+				}
+				else {
+					logger.debug(webSocketID + " exceeded rate limits, dropping message");
+				}
 			}
+			return allowed;
+		}
+		
+		void pauseReads(long pauseNanos) {
+			final SuspendToken suspendToken = session.suspend();
+			WebSocketScheduler.schedule(new Runnable() {
+				public void run() {
+					suspendToken.resume();
+				}
+			}, pauseNanos, TimeUnit.NANOSECONDS);
 		}
 		
 		@OnWebSocketMessage
 		public void onMessage(String message) {
 			logger.debug("Received message: " + message);
+			// A batch is charged for every message in it, not once for the frame
+			List<String> messages;
+			try {
+				messages = WebSocketMessageBatcher.unbatch(message);
+			} catch (IllegalArgumentException e) {
+				logger.warn(webSocketID + " sent an invalid message batch: " + e.getMessage());
+				if(messageBucket != null || byteBucket != null) {
+					checkRateLimits(1, utf8Length(message));
+				}
+				return;
+			}
+			if((messageBucket != null || byteBucket != null) && !checkRateLimits(messages.size(), utf8Length(message))) {
+				return;
+			}
+			long received = WebSocketTracer.isEnabled() ? System.nanoTime() : 0;
 			// TODO need to multi thread this otherwise 1 client can block all
+			for (String unbatched: messages) {
+				if (WebSocketEnvelope.isType(unbatched, WebSocketReplayLog.RESUME_TYPE)) {
+					resume(unbatched);
+					continue;
+				}
+				if (WebSocketRequestTable.isRequest(unbatched)) {
+					respond(unbatched);
+					continue;
+				}
+				long dispatched = 0;
+				if (received != 0) {
+					dispatched = System.nanoTime();
+					WebSocketTracer.record(WebSocketTracer.Stage.RECEIVE_TO_DISPATCH, dispatched - received);
+				}
+				for (WebSocketMessageProcessor messageProcessor: messageProcessors) {
+					messageProcessor.processMessage(this, unbatched);
+				}
+				if (dispatched != 0) {
+					WebSocketTracer.recordSince(WebSocketTracer.Stage.DISPATCH, dispatched);
+				}
+			}
+		}
+		
+		private void respond(final String request) {
+			String id;
+			try {
+				id = WebSocketEnvelope.unwrap(request, WebSocketRequestTable.REQUEST_TYPE, 1)[0];
+			} catch (IllegalArgumentException e) {
+				logger.warn(webSocketID + " sent an invalid request: " + e.getMessage());
+				return;
+			}
+			final WebSocketRequestHandler handler = requestHandler;
+			if (handler == null) {
+				logger.warn(webSocketID + " sent a request but no request handler is configured");
+				reply(WebSocketEnvelope.wrap(WebSocketRequestTable.ERROR_TYPE, "No request handler is configured", id));
+				return;
+			}
+			
+			ThreadPoolExecutor executor = requestExecutor();
+			if (executor == null) {
+				reply(WebSocketRequestTable.handle(handler, this, request));
+				return;
+			}
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						reply(WebSocketRequestTable.handle(handler, ServerWebSocket.this, request));
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.warn(webSocketID + " sent a request while " + maxPendingRequests + " were already pending");
+				reply(WebSocketEnvelope.wrap(WebSocketRequestTable.ERROR_TYPE, "Too many pending requests", id));
+			}
+		}
+		
+		private void reply(String response) {
+			try {
+				send(response);
+			} catch (IOException e) {
+				logger.error("Failed to send response to session: " + webSocketID + " error: " + e, e);
+			}
+		}
+		
+		private void resume(String request) {
+			WebSocketReplayLog log = replayLog;
+			if (log == null) {
+				logger.warn(webSocketID + " requested a replay but no replay log is configured");
+				return;
+			}
+			try {
+				String[] parts = WebSocketEnvelope.unwrap(request, WebSocketReplayLog.RESUME_TYPE, 2);
+				replay(log, parts[2], parts[0], Long.parseLong(parts[1]));
+			} catch (IllegalArgumentException e) {
+				logger.warn(webSocketID + " sent an invalid resume request: " + e.getMessage());
+			}
+		}
+		
+		private void replay(WebSocketReplayLog log, String topic, String epoch, long lastSequence) {
+			logger.info(webSocketID + " resuming topic " + topic + " after sequence " + lastSequence + " of epoch " + epoch);
+			try {
+				log.replay(this, topic, epoch, lastSequence);
+			} catch (IOException e) {
+				logger.error("Failed to replay messages to session: " + webSocketID + " error: " + e, e);
+			}
+		}
+		
+		@OnWebSocketMessage
+		public void onMessage(byte[] payload, int offset, int length) {
+			logger.debug("Received binary message of " + length + " bytes");
+			if((messageBucket != null || byteBucket != null) && !checkRateLimits(1, length)) {
+				return;
+			}
 			for (WebSocketMessageProcessor messageProcessor: messageProcessors) {
-				messageProcessor.processMessage(this, message);
+				if (messageProcessor instanceof WebSocketBinaryMessageProcessor) {
+					((WebSocketBinaryMessageProcessor)messageProcessor).processMessage(this, ByteBuffer.wrap(payload, offset, length));
+				}
 			}
 		}
 		
@@ -183,14 +949,40 @@ public class WebSocketServer {
 		
 		@OnWebSocketClose
 		public void onClose(int statusCode, String reason) {
+			if(batcher != null) {
+				batcher.close();
+			}
+			conflatingQueue.clear();
+			if(priorityQueue != null) {
+				priorityQueue.clear();
+			}
+			if(publishQueue != null) {
+				publishQueue.clear();
+			}
+			stopHeartbeat();
+			if(replayLog != null) {
+				replayLog.remove(this);
+			}
 			if(isOpen()) {
 				session.close();
 				session = null;
 			}
 			logger.info(webSocketID + " closed");
-			webSocketConnectionMap.remove(webSocketID);
-			logger.info("WebSocket connection count is " + webSocketConnectionMap.size());
+			releaseAdmission(false);
+			sessionRegistry.unregister(sessionId);
+			logger.info("WebSocket connection count is " + sessionRegistry.size());
+		}
+	}
+	
+	private static int utf8Length(String message) {
+		int length = message.length();
+		for(int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if(c >= 0x80) {
+				length += (c >= 0x800 && !Character.isSurrogate(c)) ? 2 : 1;
+			}
 		}
+		return length;
 	}
 	
 	public static void main(String[] args) throws InterruptedException, KeyManagementException, UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
@@ -0,0 +1,139 @@
+package gov.usdot.cv.websocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of open sessions keyed by compact numeric ids, with secondary indexes on
+ * named attributes (remote host, principal or anything the application sets).
+ * Reads never lock: the session list and each index entry are immutable snapshots
+ * that are replaced on every change, so broadcasts iterate a consistent view while
+ * sessions come and go. Changes are serialized, which suits connection churn being
+ * far rarer than sends.
+ */
+public class WebSocketSessionRegistry<S> {
+
+	public static final String REMOTE_HOST = "remoteHost";
+	public static final String PRINCIPAL = "principal";
+
+	private long nextId = 0;
+	private final Map<Long, Entry<S>> entries = new ConcurrentHashMap<Long, Entry<S>>();
+	private final Map<String, Map<Object, List<S>>> indexes = new ConcurrentHashMap<String, Map<Object, List<S>>>();
+	private volatile List<S> sessions = Collections.emptyList();
+
+	public synchronized long register(S session) {
+		long id = ++nextId;
+		entries.put(id, new Entry<S>(session));
+		List<S> updated = new ArrayList<S>(sessions.size() + 1);
+		updated.addAll(sessions);
+		updated.add(session);
+		sessions = Collections.unmodifiableList(updated);
+		return id;
+	}
+
+	public synchronized boolean unregister(long id) {
+		Entry<S> entry = entries.remove(id);
+		if (entry == null) {
+			return false;
+		}
+		for (Map.Entry<String, Object> attribute: entry.attributes.entrySet()) {
+			removeFromIndex(attribute.getKey(), attribute.getValue(), entry.session);
+		}
+		List<S> updated = new ArrayList<S>(sessions);
+		updated.remove(entry.session);
+		sessions = Collections.unmodifiableList(updated);
+		return true;
+	}
+
+	/**
+	 * Sets or, with a null value, clears an indexed attribute of a session.
+	 */
+	public synchronized void setAttribute(long id, String name, Object value) {
+		Entry<S> entry = entries.get(id);
+		if (entry == null) {
+			return;
+		}
+		Object previous = (value != null) ? entry.attributes.put(name, value) : entry.attributes.remove(name);
+		if (previous != null) {
+			removeFromIndex(name, previous, entry.session);
+		}
+		if (value != null) {
+			addToIndex(name, value, entry.session);
+		}
+	}
+
+	public Object getAttribute(long id, String name) {
+		Entry<S> entry = entries.get(id);
+		if (entry == null) {
+			return null;
+		}
+		synchronized (this) {
+			return entry.attributes.get(name);
+		}
+	}
+
+	public S get(long id) {
+		Entry<S> entry = entries.get(id);
+		return (entry != null) ? entry.session : null;
+	}
+
+	public List<S> sessions() {
+		return sessions;
+	}
+
+	public List<S> find(String name, Object value) {
+		Map<Object, List<S>> index = indexes.get(name);
+		List<S> found = (index != null) ? index.get(value) : null;
+		return (found != null) ? found : Collections.<S>emptyList();
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	// Must be called while holding the lock.
+	private void addToIndex(String name, Object value, S session) {
+		Map<Object, List<S>> index = indexes.get(name);
+		if (index == null) {
+			index = new ConcurrentHashMap<Object, List<S>>();
+			indexes.put(name, index);
+		}
+		List<S> existing = index.get(value);
+		List<S> updated = new ArrayList<S>((existing != null) ? existing.size() + 1 : 1);
+		if (existing != null) {
+			updated.addAll(existing);
+		}
+		updated.add(session);
+		index.put(value, Collections.unmodifiableList(updated));
+	}
+
+	// Must be called while holding the lock.
+	private void removeFromIndex(String name, Object value, S session) {
+		Map<Object, List<S>> index = indexes.get(name);
+		List<S> existing = (index != null) ? index.get(value) : null;
+		if (existing == null) {
+			return;
+		}
+		if (existing.size() == 1 && existing.get(0) == session) {
+			index.remove(value);
+		}
+		else {
+			List<S> updated = new ArrayList<S>(existing);
+			updated.remove(session);
+			index.put(value, Collections.unmodifiableList(updated));
+		}
+	}
+
+	private static class Entry<S> {
+		private final S session;
+		private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+		private Entry(S session) {
+			this.session = session;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package gov.usdot.cv.websocket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket used to rate limit a single session. Tokens refill continuously at
+ * ratePerSecond up to burst. consume() may take the bucket into debt, which is how
+ * a session that has already been read is accounted for before reading is paused.
+ */
+public class WebSocketTokenBucket {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final double ratePerNano;
+	private final double burst;
+	private double tokens;
+	private long lastRefill;
+
+	public WebSocketTokenBucket(double ratePerSecond, long burst) {
+		if (ratePerSecond <= 0 || burst <= 0) {
+			throw new IllegalArgumentException("Rate and burst must be positive.");
+		}
+		this.ratePerNano = ratePerSecond / NANOS_PER_SECOND;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	public synchronized boolean tryConsume(long count) {
+		refill();
+		if (tokens >= count) {
+			tokens -= count;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Consumes unconditionally and returns the number of nanoseconds until the bucket
+	 * is out of debt again, 0 if it never went into debt.
+	 */
+	public synchronized long consume(long count) {
+		refill();
+		tokens -= count;
+		return (tokens >= 0) ? 0 : (long)Math.ceil(-tokens / ratePerNano);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,329 @@
+package gov.usdot.cv.websocket;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Optional latency tracing of the path from WebSocketServer.sendMessage to the client's
+ * message processors. Each thread records into its own histograms, so recording takes
+ * no lock and is a few array updates; while tracing is disabled it is a single volatile
+ * read. Histograms have four buckets per power of two, so percentiles are accurate to
+ * within 25%.
+ * <p>
+ * Traced messages are sent in a "trace" envelope whose header is the wall clock time of
+ * the send in nanoseconds, but only to connections that asked for it with the
+ * X-WebSocket-Trace upgrade header, since other subscribers would not understand the
+ * envelope. The other stages are local and are recorded for every connection. Publish
+ * to receive latency between hosts is only as good as their clock synchronization.
+ */
+public class WebSocketTracer {
+
+	public enum Stage {
+		ENQUEUE_TO_WRITE,		// Queued behind other writes, in a batch or priority lane
+		WRITE,					// Write start to write complete
+		PUBLISH_TO_RECEIVE,		// Server send to client receive
+		RECEIVE_TO_DISPATCH,	// Receive to the first message processor
+		DISPATCH				// Running the message processors
+	}
+
+	public static final String TRACE_TYPE = "trace";
+	public static final String TRACE_HEADER = "X-WebSocket-Trace";
+
+	private static final Stage[] STAGES = Stage.values();
+	private static final int BUCKETS = 248;		// Enough for any positive long
+
+	private static volatile boolean enabled = false;
+	private static final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+	// Counts of threads that have died, so recorders only accumulate for live threads
+	private static final Recorder retired = new Recorder(null);
+	private static final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+		@Override
+		protected Recorder initialValue() {
+			retireDeadRecorders();
+			Recorder created = new Recorder(Thread.currentThread());
+			recorders.add(created);
+			return created;
+		}
+	};
+
+	// Wall clock with nanoTime resolution, anchored once per JVM
+	private static final long epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+	private WebSocketTracer() { }
+
+	public static void setEnabled(boolean enabled) {
+		WebSocketTracer.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void record(Stage stage, long nanos) {
+		if (enabled) {
+			recorder.get().record(stage, Math.max(0, nanos));
+		}
+	}
+
+	public static void recordSince(Stage stage, long startNanos) {
+		if (enabled) {
+			recorder.get().record(stage, Math.max(0, System.nanoTime() - startNanos));
+		}
+	}
+
+	public static long epochNanos() {
+		return epochOffsetNanos + System.nanoTime();
+	}
+
+	/**
+	 * Wraps the message in a trace envelope when tracing is enabled, otherwise returns
+	 * it unchanged.
+	 */
+	public static String wrap(String message) {
+		if (!enabled || message == null) {
+			return message;
+		}
+		return WebSocketEnvelope.wrap(TRACE_TYPE, message, String.valueOf(epochNanos()));
+	}
+
+	/**
+	 * Wraps the message in a trace envelope stamped with the given send time, or returns
+	 * it unchanged if the stamp is 0.
+	 */
+	public static String wrap(String message, long sentEpochNanos) {
+		if (sentEpochNanos == 0 || message == null) {
+			return message;
+		}
+		return WebSocketEnvelope.wrap(TRACE_TYPE, message, String.valueOf(sentEpochNanos));
+	}
+
+	// Send time to stamp a message with, 0 while tracing is disabled
+	public static long stamp() {
+		return enabled ? epochNanos() : 0;
+	}
+
+	public static boolean isTraced(String message) {
+		return WebSocketEnvelope.isType(message, TRACE_TYPE);
+	}
+
+	/**
+	 * Strips the trace envelope, recording the publish to receive latency if tracing
+	 * is enabled here too. Messages that were not traced are returned unchanged.
+	 */
+	public static String unwrap(String message, long receivedEpochNanos) {
+		if (!isTraced(message)) {
+			return message;
+		}
+		String[] parts = WebSocketEnvelope.unwrap(message, TRACE_TYPE, 1);
+		if (enabled) {
+			try {
+				record(Stage.PUBLISH_TO_RECEIVE, receivedEpochNanos - Long.parseLong(parts[0]));
+			} catch (NumberFormatException ignore) { }
+		}
+		return parts[1];
+	}
+
+	/**
+	 * Combines the histograms of every thread that has recorded the stage, including
+	 * threads that have since died.
+	 */
+	public static Snapshot snapshot(Stage stage) {
+		Snapshot snapshot = new Snapshot(stage);
+		synchronized (retired) {
+			retireDeadRecorders();
+			retired.addTo(snapshot);
+			for (Recorder threadRecorder: recorders) {
+				threadRecorder.addTo(snapshot);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Clears all histograms. Values recorded while the reset is in progress may or
+	 * may not survive it.
+	 */
+	public static void reset() {
+		synchronized (retired) {
+			retireDeadRecorders();
+			retired.reset();
+			for (Recorder threadRecorder: recorders) {
+				threadRecorder.reset();
+			}
+		}
+	}
+
+	static int getRecorderCount() {
+		return recorders.size();
+	}
+
+	// Folds the histograms of threads that have died into the retired totals. A dead
+	// thread no longer writes to its recorder, so it can be read without racing it.
+	private static void retireDeadRecorders() {
+		synchronized (retired) {
+			for (Recorder threadRecorder: recorders) {
+				if (!threadRecorder.isAlive()) {
+					retired.add(threadRecorder);
+					recorders.remove(threadRecorder);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes count, mean, percentiles and max of every stage, in microseconds.
+	 */
+	public static void dump(File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.println("stage\tcount\tmean\tp50\tp90\tp99\tp99.9\tmax");
+			for (Stage stage: STAGES) {
+				writer.println(snapshot(stage));
+			}
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError()) {
+			throw new IOException("Failed to write trace to " + file);
+		}
+	}
+
+	static int bucket(long nanos) {
+		if (nanos < 4) {
+			return (int)nanos;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(nanos);
+		return 4 * (msb - 1) + (int)((nanos >>> (msb - 2)) & 3);
+	}
+
+	static long bucketUpperBound(int bucket) {
+		if (bucket < 4) {
+			return bucket;
+		}
+		int msb = bucket / 4 + 1;
+		long lower = (long)(4 + bucket % 4) << (msb - 2);
+		return lower + (1L << (msb - 2)) - 1;
+	}
+
+	public static class Snapshot {
+		private final Stage stage;
+		private final long[] counts = new long[BUCKETS];
+		private long count = 0;
+		private long total = 0;
+		private long max = 0;
+
+		private Snapshot(Stage stage) {
+			this.stage = stage;
+		}
+
+		public Stage getStage() {
+			return stage;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMeanNanos() {
+			return (count > 0) ? total / count : 0;
+		}
+
+		public long getMaxNanos() {
+			return max;
+		}
+
+		/**
+		 * Upper bound of the bucket holding the given percentile (0 - 100), never more
+		 * than the maximum recorded.
+		 */
+		public long getPercentileNanos(double percentile) {
+			long rank = (long)Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(bucketUpperBound(i), max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return stage + "\t" + count + "\t" + micros(getMeanNanos()) + "\t" + micros(getPercentileNanos(50))
+					+ "\t" + micros(getPercentileNanos(90)) + "\t" + micros(getPercentileNanos(99))
+					+ "\t" + micros(getPercentileNanos(99.9)) + "\t" + micros(max);
+		}
+
+		private static String micros(long nanos) {
+			return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+		}
+	}
+
+	// Written only by its own thread, or for the retired recorder while holding it; the
+	// atomic arrays make the values visible to readers.
+	private static class Recorder {
+		private final AtomicLongArray counts = new AtomicLongArray(STAGES.length * BUCKETS);
+		private final AtomicLongArray totals = new AtomicLongArray(STAGES.length);
+		private final AtomicLongArray maxima = new AtomicLongArray(STAGES.length);
+		private final WeakReference<Thread> owner;
+
+		private Recorder(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+
+		private boolean isAlive() {
+			Thread thread = owner.get();
+			return thread != null && thread.isAlive();
+		}
+
+		private void record(Stage stage, long nanos) {
+			int s = stage.ordinal();
+			int index = s * BUCKETS + bucket(nanos);
+			counts.lazySet(index, counts.get(index) + 1);
+			totals.lazySet(s, totals.get(s) + nanos);
+			if (nanos > maxima.get(s)) {
+				maxima.lazySet(s, nanos);
+			}
+		}
+
+		private void addTo(Snapshot snapshot) {
+			int s = snapshot.stage.ordinal();
+			for (int i = 0; i < BUCKETS; i++) {
+				long bucketCount = counts.get(s * BUCKETS + i);
+				snapshot.counts[i] += bucketCount;
+				snapshot.count += bucketCount;
+			}
+			snapshot.total += totals.get(s);
+			snapshot.max = Math.max(snapshot.max, maxima.get(s));
+		}
+
+		private void add(Recorder other) {
+			for (int i = 0; i < counts.length(); i++) {
+				counts.lazySet(i, counts.get(i) + other.counts.get(i));
+			}
+			for (int s = 0; s < STAGES.length; s++) {
+				totals.lazySet(s, totals.get(s) + other.totals.get(s));
+				maxima.lazySet(s, Math.max(maxima.get(s), other.maxima.get(s)));
+			}
+		}
+
+		private void reset() {
+			for (int i = 0; i < counts.length(); i++) {
+				counts.set(i, 0);
+			}
+			for (int s = 0; s < STAGES.length; s++) {
+				totals.set(s, 0);
+				maxima.set(s, 0);
+			}
+		}
+	}
+}
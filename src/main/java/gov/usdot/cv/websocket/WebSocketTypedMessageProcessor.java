@@ -0,0 +1,6 @@
+package gov.usdot.cv.websocket;
+
+public interface WebSocketTypedMessageProcessor<T> {
+
+	public void processMessage(BaseWebSocket socket, T message);
+}
@@ -0,0 +1,97 @@
+package gov.usdot.cv.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Socket stand-in for unit tests. It is always open and records every frame instead of
+ * writing it; asynchronous writes either complete inline or wait for completeWrites().
+ * It is a ServerWebSocket so it can also be registered in a WebSocketSessionRegistry.
+ */
+class TestWebSocket extends WebSocketServer.ServerWebSocket {
+	final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+	final List<ByteBuffer> sentBinary = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+	final List<MessagePriority> priorities = Collections.synchronizedList(new ArrayList<MessagePriority>());
+	final List<WriteCallback> callbacks = Collections.synchronizedList(new ArrayList<WriteCallback>());
+	boolean completeInline = false;
+	long sessionId = 0;
+	int closeStatus = 0;
+	long pausedNanos = 0;
+
+	TestWebSocket() {
+		this(null);
+	}
+
+	// A socket holding a connection slot reserved for the address, as the upgrade creates
+	TestWebSocket(String admittedAddress) {
+		super(admittedAddress);
+	}
+
+	@Override
+	public long getSessionId() {
+		return sessionId;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void send(String message, MessagePriority priority) throws IOException {
+		priorities.add(priority);
+		super.send(message, priority);
+	}
+
+	@Override
+	protected void sendFrame(String message) {
+		sent.add(message);
+	}
+
+	@Override
+	protected void sendFrame(String message, WriteCallback callback) {
+		sent.add(message);
+		if (completeInline) {
+			callback.writeSuccess();
+		}
+		else {
+			callbacks.add(callback);
+		}
+	}
+
+	@Override
+	protected void sendFrame(ByteBuffer message, WriteCallback callback) {
+		sentBinary.add(message);
+		if (completeInline) {
+			callback.writeSuccess();
+		}
+		else {
+			callbacks.add(callback);
+		}
+	}
+
+	@Override
+	void close(int statusCode, String reason) {
+		closeStatus = statusCode;
+	}
+
+	@Override
+	void pauseReads(long pauseNanos) {
+		pausedNanos += pauseNanos;
+	}
+
+	void completeWrite() {
+		callbacks.remove(0).writeSuccess();
+	}
+
+	void completeWrites() {
+		while (!callbacks.isEmpty()) {
+			completeWrite();
+		}
+	}
+}
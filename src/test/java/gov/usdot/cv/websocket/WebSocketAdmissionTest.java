@@ -0,0 +1,138 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WebSocketAdmissionTest {
+
+	private final WebSocketServer server = new WebSocketServer(0);
+
+	@After
+	public void tearDown() {
+		server.setConnectionLimits(0, 0);
+	}
+
+	@Test
+	public void testConcurrentUpgradesCannotOvershootTheCap() throws InterruptedException {
+		final String address = "10.0.0.1";
+		server.setConnectionLimits(0, 5);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<TestWebSocket> admitted = Collections.synchronizedList(new ArrayList<TestWebSocket>());
+		Thread[] upgrades = new Thread[20];
+		for (int i = 0; i < upgrades.length; i++) {
+			upgrades[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (WebSocketServer.admit(address) == null) {
+						admitted.add(new TestWebSocket(address));
+					}
+				}
+			});
+			upgrades[i].start();
+		}
+		start.countDown();
+		for (Thread upgrade: upgrades) {
+			upgrade.join();
+		}
+
+		assertEquals(5, admitted.size());
+		assertEquals(5, WebSocketServer.admittedCount(address));
+		for (TestWebSocket socket: admitted) {
+			socket.releaseAdmission(false);
+		}
+		assertEquals(0, WebSocketServer.admittedCount(address));
+	}
+
+	@Test
+	public void testPerAddressCap() {
+		server.setConnectionLimits(0, 1);
+		assertNull(WebSocketServer.admit("10.0.0.2"));
+		assertNotNull(WebSocketServer.admit("10.0.0.2"));
+		assertNull(WebSocketServer.admit("10.0.0.3"));
+		new TestWebSocket("10.0.0.3").releaseAdmission(false);
+
+		new TestWebSocket("10.0.0.2").releaseAdmission(false);
+		assertEquals(0, WebSocketServer.admittedCount("10.0.0.2"));
+		assertNull(WebSocketServer.admit("10.0.0.2"));
+		new TestWebSocket("10.0.0.2").releaseAdmission(false);
+	}
+
+	@Test
+	public void testTotalCap() {
+		int base = WebSocketServer.admittedCount(null);
+		server.setConnectionLimits(base + 2, 0);
+		assertNull(WebSocketServer.admit("10.0.0.4"));
+		assertNull(WebSocketServer.admit("10.0.0.5"));
+		assertNotNull(WebSocketServer.admit("10.0.0.6"));
+		assertEquals(base + 2, WebSocketServer.admittedCount(null));
+		new TestWebSocket("10.0.0.4").releaseAdmission(false);
+		new TestWebSocket("10.0.0.5").releaseAdmission(false);
+		assertEquals(base, WebSocketServer.admittedCount(null));
+	}
+
+	@Test
+	public void testReleasedOnlyOnce() {
+		assertNull(WebSocketServer.admit("10.0.0.7"));
+		TestWebSocket socket = new TestWebSocket("10.0.0.7");
+		assertNull(socket.openAdmission());
+		socket.releaseAdmission(true);		// Expiry after opening keeps the slot
+		assertEquals(1, WebSocketServer.admittedCount("10.0.0.7"));
+		socket.releaseAdmission(false);
+		socket.releaseAdmission(false);
+		assertEquals(0, WebSocketServer.admittedCount("10.0.0.7"));
+	}
+
+	@Test
+	public void testExpiredReservationNeverOpened() {
+		assertNull(WebSocketServer.admit("10.0.0.8"));
+		TestWebSocket socket = new TestWebSocket("10.0.0.8");
+		socket.releaseAdmission(true);
+		assertEquals(0, WebSocketServer.admittedCount("10.0.0.8"));
+		socket.releaseAdmission(false);		// The failed upgrade is closed later
+		assertEquals(0, WebSocketServer.admittedCount("10.0.0.8"));
+	}
+
+	@Test
+	public void testLateOpenIsAdmittedAgain() {
+		server.setConnectionLimits(0, 1);
+		assertNull(WebSocketServer.admit("10.0.0.9"));
+		TestWebSocket socket = new TestWebSocket("10.0.0.9");
+		socket.releaseAdmission(true);
+		assertNull(socket.openAdmission());
+		assertEquals(1, WebSocketServer.admittedCount("10.0.0.9"));
+		assertNotNull(WebSocketServer.admit("10.0.0.9"));
+		socket.releaseAdmission(false);
+		assertEquals(0, WebSocketServer.admittedCount("10.0.0.9"));
+	}
+
+	@Test
+	public void testLateOpenPastTheCapIsRejected() {
+		server.setConnectionLimits(0, 1);
+		assertNull(WebSocketServer.admit("10.0.0.10"));
+		TestWebSocket late = new TestWebSocket("10.0.0.10");
+		late.releaseAdmission(true);
+		assertNull(WebSocketServer.admit("10.0.0.10"));
+		TestWebSocket other = new TestWebSocket("10.0.0.10");
+		assertNull(other.openAdmission());
+
+		assertNotNull(late.openAdmission());
+		assertEquals(1, WebSocketServer.admittedCount("10.0.0.10"));
+		late.releaseAdmission(false);		// Closing the rejected connection frees nothing
+		assertEquals(1, WebSocketServer.admittedCount("10.0.0.10"));
+		other.releaseAdmission(false);
+		assertEquals(0, WebSocketServer.admittedCount("10.0.0.10"));
+	}
+}
@@ -0,0 +1,46 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class WebSocketConflatingQueueTest {
+
+	@Test
+	public void testLatestValueReplacesPending() {
+		TestWebSocket socket = new TestWebSocket();
+		WebSocketConflatingQueue queue = new WebSocketConflatingQueue(socket);
+
+		queue.offer("signal-1", "red");
+		queue.offer("signal-1", "green");
+		queue.offer("vehicle-7", "42.1,-83.2");
+		queue.offer("signal-1", "yellow");
+		assertEquals(Arrays.asList("red"), socket.sent);
+		assertEquals(2, queue.getPendingCount());
+		assertEquals(1, queue.getConflatedCount());
+
+		socket.completeWrites();
+		assertEquals(Arrays.asList("red", "yellow", "42.1,-83.2"), socket.sent);
+		assertEquals(0, queue.getPendingCount());
+	}
+
+	@Test
+	public void testInlineCompletionDrainsBacklog() {
+		TestWebSocket socket = new TestWebSocket();
+		WebSocketConflatingQueue queue = new WebSocketConflatingQueue(socket);
+
+		queue.offer("a", "1");
+		for (int i = 0; i < 10000; i++) {
+			queue.offer("key-" + i, "value-" + i);
+		}
+		socket.completeInline = true;
+		socket.completeWrites();
+		assertEquals(10001, socket.sent.size());
+		assertEquals("value-9999", socket.sent.get(10000));
+
+		queue.offer("a", "2");
+		assertEquals("2", socket.sent.get(10001));
+	}
+}
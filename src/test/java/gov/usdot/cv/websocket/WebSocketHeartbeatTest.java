@@ -0,0 +1,96 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Test;
+
+public class WebSocketHeartbeatTest {
+
+	@Test
+	public void testSilentSocketIsDisconnected() {
+		WebSocketHeartbeat heartbeat = new WebSocketHeartbeat(1000, 3);
+		PingSocket socket = new PingSocket();
+		heartbeat.register(socket);
+
+		for (int interval = 1; interval <= 3; interval++) {
+			tickInterval(heartbeat);
+			assertFalse(socket.disconnected);
+			assertEquals(interval, socket.pings.size());
+		}
+		tickInterval(heartbeat);
+		assertTrue(socket.disconnected);
+		assertEquals(3, socket.pings.size());
+		assertEquals(-1, socket.heartbeatSlot);
+	}
+
+	@Test
+	public void testPongUpdatesRoundTrip() {
+		WebSocketHeartbeat heartbeat = new WebSocketHeartbeat(1000, 2);
+		PingSocket socket = new PingSocket();
+		heartbeat.register(socket);
+		assertEquals(-1, socket.getRoundTripNanos());
+
+		for (int interval = 0; interval < 5; interval++) {
+			tickInterval(heartbeat);
+			heartbeat.pongReceived(socket, socket.pings.get(socket.pings.size() - 1));
+			assertTrue(socket.getRoundTripNanos() >= 0);
+			assertEquals(0, socket.missedPings);
+		}
+		assertFalse(socket.disconnected);
+
+		// A pong for an older ping does not count
+		tickInterval(heartbeat);
+		heartbeat.pongReceived(socket, socket.pings.get(0));
+		assertTrue(socket.pingSentNanos != 0);
+	}
+
+	private static void tickInterval(WebSocketHeartbeat heartbeat) {
+		for (int i = 0; i < WebSocketHeartbeat.WHEEL_SLOTS; i++) {
+			heartbeat.tick();
+		}
+	}
+
+	// Socket with a stand-in session that records pings and disconnects
+	private static class PingSocket extends BaseWebSocket {
+		private final List<ByteBuffer> pings = new ArrayList<ByteBuffer>();
+		private boolean disconnected = false;
+
+		private PingSocket() {
+			final RemoteEndpoint remote = (RemoteEndpoint)Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { RemoteEndpoint.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("sendPing")) {
+						pings.add(((ByteBuffer)args[0]).duplicate());
+					}
+					return null;
+				}
+			});
+			session = (Session)Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { Session.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("isOpen")) {
+						return !disconnected;
+					}
+					if (method.getName().equals("getRemote")) {
+						return remote;
+					}
+					if (method.getName().equals("disconnect")) {
+						disconnected = true;
+					}
+					return null;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WebSocketMessageBatcherTest {
+
+	@Test
+	public void testEncodeUnbatch() {
+		List<String> messages = Arrays.asList("{\"id\":1}", "", "12:34", "contains \u001E separator", "last");
+		String batch = WebSocketMessageBatcher.encode(messages);
+		assertTrue(WebSocketMessageBatcher.isBatch(batch));
+		assertEquals(messages, WebSocketMessageBatcher.unbatch(batch));
+	}
+
+	@Test
+	public void testUnbatchPassesThroughPlainMessages() {
+		assertFalse(WebSocketMessageBatcher.isBatch("Test message"));
+		assertEquals(Arrays.asList("Test message"), WebSocketMessageBatcher.unbatch("Test message"));
+		assertEquals(Arrays.asList(""), WebSocketMessageBatcher.unbatch(""));
+	}
+
+	@Test
+	public void testLargeBatch() {
+		List<String> messages = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			messages.add("BSM " + i);
+		}
+		assertEquals(messages, WebSocketMessageBatcher.unbatch(WebSocketMessageBatcher.encode(messages)));
+	}
+
+	@Test
+	public void testFullBatchIsSentImmediately() throws IOException {
+		TestWebSocket socket = new TestWebSocket();
+		socket.completeInline = true;
+		WebSocketMessageBatcher batcher = new WebSocketMessageBatcher(socket, 60000, 10);
+		batcher.add("12345");
+		assertTrue(socket.sent.isEmpty());
+		batcher.add("67890");
+		assertEquals(Arrays.asList("12345", "67890"), WebSocketMessageBatcher.unbatch(socket.sent.get(0)));
+	}
+
+	@Test
+	public void testTimedFlushDoesNotWaitForWrite() throws Exception {
+		// Two sessions whose writes never complete must not tie up the shared scheduler
+		TestWebSocket[] sockets = new TestWebSocket[2];
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = new TestWebSocket() {
+				@Override
+				protected void sendFrame(String message) {
+					try {
+						Thread.sleep(3000);		// Like a blocking write to a stalled peer
+					} catch (InterruptedException ignore) {
+					}
+				}
+			};
+		}
+		for (TestWebSocket socket: sockets) {
+			WebSocketMessageBatcher batcher = new WebSocketMessageBatcher(socket, 10, 1000);
+			batcher.add("first");
+			batcher.add("second");
+		}
+
+		final CountDownLatch ran = new CountDownLatch(1);
+		WebSocketScheduler.schedule(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(1, TimeUnit.SECONDS));
+		for (TestWebSocket socket: sockets) {
+			assertEquals(Arrays.asList("first", "second"), WebSocketMessageBatcher.unbatch(socket.sent.get(0)));
+			assertEquals(1, socket.callbacks.size());
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testMalformedBatch() {
+		WebSocketMessageBatcher.unbatch(WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "10:short", "1"));
+	}
+
+	@Test
+	public void testHostileCountIsNotTrusted() {
+		String batch = WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "1:x", "2147483600");
+		assertEquals(Arrays.asList("x"), WebSocketMessageBatcher.unbatch(batch));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeLength() {
+		WebSocketMessageBatcher.unbatch(WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "-3:abc", "1"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testLengthOverflow() {
+		WebSocketMessageBatcher.unbatch(WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "2147483647:abc", "1"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNonNumericCount() {
+		WebSocketMessageBatcher.unbatch(WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "1:x", "many"));
+	}
+
+	@Test
+	public void testServerDropsMalformedBatch() {
+		TestWebSocket socket = new TestWebSocket();
+		socket.onMessage(WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "-1:x", "1"));
+		socket.onMessage(WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "1:x", "2147483600"));
+		socket.onMessage(WebSocketEnvelope.wrap(WebSocketMessageBatcher.BATCH_TYPE, "1:x", "none"));
+	}
+}
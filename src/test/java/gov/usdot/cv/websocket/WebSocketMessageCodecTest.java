@@ -0,0 +1,106 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.junit.Test;
+
+public class WebSocketMessageCodecTest {
+
+	@Test
+	public void testLengthPrefixedRoundTrip() throws IOException {
+		LengthPrefixedMessageCodec codec = new LengthPrefixedMessageCodec();
+		ByteBufferPool bufferPool = new ArrayByteBufferPool();
+		List<ByteBuffer> records = Arrays.asList(bytes("BSM 1"), bytes(""), bytes("SPaT 42"));
+
+		ByteBuffer encoded = codec.encodeBinary(records, bufferPool);
+		assertEquals(3 * 4 + 5 + 0 + 7, encoded.remaining());
+
+		List<ByteBuffer> decoded = codec.decode(encoded);
+		assertEquals(records, decoded);
+		bufferPool.release(encoded);
+	}
+
+	@Test(expected=IOException.class)
+	public void testLengthPrefixedTruncated() throws IOException {
+		ByteBuffer message = ByteBuffer.allocate(6);
+		message.putInt(10).put((byte)1).put((byte)2).flip();
+		new LengthPrefixedMessageCodec().decode(message);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testJsonDecodedOnceForAllProcessors() throws IOException {
+		WebSocketCodecProcessor<Object> codecProcessor = new WebSocketCodecProcessor<Object>(new JsonMessageCodec());
+		RecordingProcessor first = new RecordingProcessor();
+		RecordingProcessor second = new RecordingProcessor();
+		codecProcessor.addMessageProcessor(first);
+		codecProcessor.addMessageProcessor(second);
+
+		codecProcessor.processMessage(null, "{\"id\":\"7\",\"speed\":12.5}");
+		assertEquals(1, first.messages.size());
+		assertSame(first.messages.get(0), second.messages.get(0));
+		Map<String, Object> decoded = (Map<String, Object>)first.messages.get(0);
+		assertEquals("7", decoded.get("id"));
+		assertEquals(12.5, ((Number)decoded.get("speed")).doubleValue(), 0);
+
+		codecProcessor.processMessage(null, bytes("[1,2]"));
+		assertEquals(2, first.messages.size());
+	}
+
+	@Test(expected=IOException.class)
+	public void testJsonInvalid() throws IOException {
+		new JsonMessageCodec().decode("{\"id\":");
+	}
+
+	@Test
+	public void testPooledBufferReleasedAfterWritesComplete() throws IOException {
+		CountingBufferPool bufferPool = new CountingBufferPool();
+		WebSocketCodecProcessor<List<ByteBuffer>> codecProcessor =
+			new WebSocketCodecProcessor<List<ByteBuffer>>(new LengthPrefixedMessageCodec(), bufferPool);
+		TestWebSocket first = new TestWebSocket();
+		TestWebSocket second = new TestWebSocket();
+
+		codecProcessor.send(Arrays.asList(first, second), Arrays.asList(bytes("BSM 1")));
+		assertEquals(1, first.sentBinary.size());
+		assertEquals(1, second.sentBinary.size());
+		assertEquals(0, bufferPool.released);
+
+		first.completeWrite();
+		assertEquals(0, bufferPool.released);
+		second.callbacks.remove(0).writeFailed(new IOException("closed"));
+		assertEquals(1, bufferPool.released);
+	}
+
+	private static ByteBuffer bytes(String value) {
+		return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static class CountingBufferPool extends ArrayByteBufferPool {
+		private int released = 0;
+
+		@Override
+		public void release(ByteBuffer buffer) {
+			released++;
+			super.release(buffer);
+		}
+	}
+
+	private static class RecordingProcessor implements WebSocketTypedMessageProcessor<Object> {
+		private final List<Object> messages = new ArrayList<Object>();
+
+		public void processMessage(BaseWebSocket socket, Object message) {
+			messages.add(message);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class WebSocketPriorityQueueTest {
+
+	@Test
+	public void testHigherLanesOvertake() throws IOException {
+		TestWebSocket socket = new TestWebSocket();
+		WebSocketPriorityQueue queue = new WebSocketPriorityQueue(socket, 10, 0);
+
+		queue.offer(MessagePriority.BULK, "bulk-1");
+		queue.offer(MessagePriority.BULK, "bulk-2");
+		queue.offer(MessagePriority.NORMAL, "normal-1");
+		queue.offer(MessagePriority.HIGH, "alert-1");
+		assertEquals(Arrays.asList("bulk-1"), socket.sent);
+		assertEquals(1, queue.getPendingCount(MessagePriority.BULK));
+
+		socket.completeWrite();
+		queue.offer(MessagePriority.HIGH, "alert-2");
+		socket.completeWrites();
+		assertEquals(Arrays.asList("bulk-1", "alert-1", "alert-2", "normal-1", "bulk-2"), socket.sent);
+		assertTrue(queue.isIdle());
+		assertEquals(2, queue.getSentCount(MessagePriority.HIGH));
+		assertEquals(2, queue.getSentCount(MessagePriority.BULK));
+		assertTrue(queue.getAverageLatencyNanos(MessagePriority.NORMAL) >= 0);
+		assertTrue(queue.getMaxLatencyNanos(MessagePriority.BULK) >= queue.getAverageLatencyNanos(MessagePriority.BULK));
+	}
+
+	@Test
+	public void testQueuedMessagesAreBatched() throws IOException {
+		TestWebSocket socket = new TestWebSocket();
+		WebSocketPriorityQueue queue = new WebSocketPriorityQueue(socket, 10, 10);
+
+		queue.offer(MessagePriority.NORMAL, "first");
+		queue.offer(MessagePriority.NORMAL, "abcd");
+		queue.offer(MessagePriority.NORMAL, "efgh");
+		queue.offer(MessagePriority.NORMAL, "ijkl");
+		socket.completeWrites();
+		assertEquals(3, socket.sent.size());
+		assertEquals(Arrays.asList("abcd", "efgh"), WebSocketMessageBatcher.unbatch(socket.sent.get(1)));
+		assertEquals("ijkl", socket.sent.get(2));
+		assertEquals(4, queue.getSentCount(MessagePriority.NORMAL));
+	}
+
+	@Test
+	public void testFullLaneRejects() throws IOException {
+		TestWebSocket socket = new TestWebSocket();
+		WebSocketPriorityQueue queue = new WebSocketPriorityQueue(socket, 1, 0);
+
+		queue.offer(MessagePriority.BULK, "in-flight");
+		queue.offer(MessagePriority.BULK, "queued");
+		try {
+			queue.offer(MessagePriority.BULK, "rejected");
+			fail("Expected a full lane to reject the message");
+		} catch (IOException expected) {
+		}
+		queue.offer(MessagePriority.HIGH, "alert");
+		socket.completeWrites();
+		assertEquals(Arrays.asList("in-flight", "alert", "queued"), socket.sent);
+	}
+
+	@Test
+	public void testInlineCompletionDrainsBacklog() throws IOException {
+		TestWebSocket socket = new TestWebSocket();
+		WebSocketPriorityQueue queue = new WebSocketPriorityQueue(socket, 10000, 0);
+
+		queue.offer(MessagePriority.NORMAL, "first");
+		for (int i = 0; i < 10000; i++) {
+			queue.offer(MessagePriority.BULK, "bulk-" + i);
+		}
+		socket.completeInline = true;
+		socket.completeWrites();
+		assertEquals(10001, socket.sent.size());
+		assertEquals("bulk-9999", socket.sent.get(10000));
+		assertTrue(queue.isIdle());
+	}
+}
@@ -0,0 +1,209 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import gov.usdot.cv.websocket.WebSocketServer.ServerWebSocket;
+
+public class WebSocketPublishPipelineTest {
+
+	@Test
+	public void testEverySessionReceivesMessagesInOrder() throws InterruptedException {
+		WebSocketSessionRegistry<ServerWebSocket> registry = new WebSocketSessionRegistry<ServerWebSocket>();
+		List<TestWebSocket> sockets = new ArrayList<TestWebSocket>();
+		for (int i = 0; i < 5; i++) {
+			TestWebSocket socket = new TestWebSocket();
+			socket.sessionId = registry.register(socket);
+			sockets.add(socket);
+		}
+
+		final WebSocketPublishPipeline pipeline = new WebSocketPublishPipeline(registry, 64, 3, 0);
+		pipeline.start();
+		Thread[] producers = new Thread[4];
+		for (int p = 0; p < producers.length; p++) {
+			final int producer = p;
+			producers[p] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 5000; i++) {
+						pipeline.publish(producer + ":" + i, MessagePriority.NORMAL);
+					}
+				}
+			});
+			producers[p].start();
+		}
+		for (Thread producer: producers) {
+			producer.join();
+		}
+		awaitIdle(pipeline);
+		pipeline.stop();
+
+		for (TestWebSocket socket: sockets) {
+			assertEquals(20000, socket.sent.size());
+			Map<String, Integer> last = new HashMap<String, Integer>();
+			for (String message: socket.sent) {
+				String[] parts = message.split(":");
+				Integer previous = last.put(parts[0], Integer.valueOf(parts[1]));
+				assertTrue(previous == null || previous < Integer.parseInt(parts[1]));
+			}
+		}
+	}
+
+	@Test
+	public void testOffHeapSlots() throws InterruptedException {
+		WebSocketSessionRegistry<ServerWebSocket> registry = new WebSocketSessionRegistry<ServerWebSocket>();
+		TestWebSocket socket = new TestWebSocket();
+		socket.sessionId = registry.register(socket);
+
+		WebSocketPublishPipeline pipeline = new WebSocketPublishPipeline(registry, 4, 1, 16);
+		pipeline.start();
+		pipeline.publish("plain", MessagePriority.NORMAL);
+		pipeline.publish("caf\u00e9 \u20ac\ud83d\ude97", MessagePriority.HIGH);
+		pipeline.publish("longer than sixteen bytes", MessagePriority.BULK);
+		awaitIdle(pipeline);
+		pipeline.stop();
+
+		assertEquals(Arrays.asList("plain", "caf\u00e9 \u20ac\ud83d\ude97", "longer than sixteen bytes"), socket.sent);
+		assertEquals(Arrays.asList(MessagePriority.NORMAL, MessagePriority.HIGH, MessagePriority.BULK), socket.priorities);
+	}
+
+	@Test
+	public void testOnlyTracedSessionsGetEnvelopes() throws InterruptedException {
+		WebSocketSessionRegistry<ServerWebSocket> registry = new WebSocketSessionRegistry<ServerWebSocket>();
+		TestWebSocket plain = new TestWebSocket();
+		plain.sessionId = registry.register(plain);
+		TestWebSocket traced = new TestWebSocket();
+		traced.setTraced(true);
+		traced.sessionId = registry.register(traced);
+
+		WebSocketPublishPipeline pipeline = new WebSocketPublishPipeline(registry, 4, 1, 16);
+		pipeline.start();
+		WebSocketTracer.setEnabled(true);
+		try {
+			pipeline.publish("message", MessagePriority.NORMAL);
+			awaitIdle(pipeline);
+		} finally {
+			WebSocketTracer.setEnabled(false);
+			WebSocketTracer.reset();
+			pipeline.stop();
+		}
+
+		assertEquals(Arrays.asList("message"), plain.sent);
+		assertEquals(1, traced.sent.size());
+		assertTrue(WebSocketTracer.isTraced(traced.sent.get(0)));
+		assertEquals("message", WebSocketTracer.unwrap(traced.sent.get(0), WebSocketTracer.epochNanos()));
+	}
+
+	@Test
+	public void testPublishRequiresRunningPipeline() {
+		WebSocketPublishPipeline pipeline = new WebSocketPublishPipeline(new WebSocketSessionRegistry<ServerWebSocket>(), 8, 1, 0);
+		assertFalse(pipeline.publish("message", MessagePriority.NORMAL));
+		pipeline.start();
+		assertTrue(pipeline.publish("message", MessagePriority.NORMAL));
+		pipeline.stop();
+		assertFalse(pipeline.publish("message", MessagePriority.NORMAL));
+	}
+
+	@Test(timeout = 10000)
+	public void testFailingSessionDoesNotStopConsumer() throws InterruptedException {
+		WebSocketSessionRegistry<ServerWebSocket> registry = new WebSocketSessionRegistry<ServerWebSocket>();
+		TestWebSocket broken = new TestWebSocket() {
+			@Override
+			public boolean isOpen() {
+				if (sent.size() % 2 == 0) {
+					sent.add("isOpen");
+					throw new NullPointerException("session closed concurrently");
+				}
+				return true;
+			}
+
+			@Override
+			public void send(String message, MessagePriority priority) {
+				sent.add(message);
+				throw new AssertionError("broken session");
+			}
+		};
+		broken.sessionId = registry.register(broken);
+		TestWebSocket healthy = new TestWebSocket();
+		healthy.sessionId = registry.register(healthy);
+
+		// Wraps the ring several times, which would hang if the consumer had died
+		WebSocketPublishPipeline pipeline = new WebSocketPublishPipeline(registry, 4, 1, 0);
+		pipeline.start();
+		for (int i = 0; i < 20; i++) {
+			assertTrue(pipeline.publish("message " + i, MessagePriority.NORMAL));
+		}
+		awaitIdle(pipeline);
+		pipeline.stop();
+
+		assertEquals(20, healthy.sent.size());
+		assertEquals("message 19", healthy.sent.get(19));
+	}
+
+	@Test
+	public void testIdleConsumersBlockUntilPublish() throws InterruptedException {
+		WebSocketSessionRegistry<ServerWebSocket> registry = new WebSocketSessionRegistry<ServerWebSocket>();
+		TestWebSocket socket = new TestWebSocket();
+		socket.sessionId = registry.register(socket);
+
+		WebSocketPublishPipeline pipeline = new WebSocketPublishPipeline(registry, 8, 2, 0);
+		pipeline.start();
+		awaitBlockedConsumers(2);
+
+		pipeline.publish("wake up", MessagePriority.NORMAL);
+		awaitIdle(pipeline);
+		assertEquals(Arrays.asList("wake up"), socket.sent);
+		awaitBlockedConsumers(2);
+
+		long start = System.currentTimeMillis();
+		pipeline.stop();
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(0, consumerThreads().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBufferSizeMustBePowerOfTwo() {
+		new WebSocketPublishPipeline(new WebSocketSessionRegistry<ServerWebSocket>(), 100, 1, 0);
+	}
+
+	private static List<Thread> consumerThreads() {
+		List<Thread> consumers = new ArrayList<Thread>();
+		for (Thread thread: Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("WebSocketPublisher-") && thread.isAlive()) {
+				consumers.add(thread);
+			}
+		}
+		return consumers;
+	}
+
+	private static void awaitBlockedConsumers(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		int blocked = 0;
+		while (blocked < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+			blocked = 0;
+			for (Thread consumer: consumerThreads()) {
+				if (consumer.getState() == Thread.State.WAITING) {
+					blocked++;
+				}
+			}
+		}
+		assertEquals(count, blocked);
+	}
+
+	private static void awaitIdle(WebSocketPublishPipeline pipeline) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!pipeline.isIdle() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(pipeline.isIdle());
+	}
+}
@@ -0,0 +1,94 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.usdot.cv.websocket.WebSocketServer.RateLimitPolicy;
+
+public class WebSocketRateLimitTest {
+
+	private final WebSocketServer server = new WebSocketServer(0);
+	private final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() {
+		server.addMessageProcessor(new WebSocketMessageProcessor() {
+			public void processMessage(BaseWebSocket socket, String message) {
+				processed.add(message);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		server.setRateLimits(0, 0, 0, 0, RateLimitPolicy.PAUSE);
+		server.stop();
+	}
+
+	@Test
+	public void testDropPolicy() {
+		TestWebSocket socket = limitedSocket(0.001, 2, 0, 0, RateLimitPolicy.DROP);
+		socket.onMessage("1");
+		socket.onMessage("2");
+		socket.onMessage("3");
+		assertEquals(Arrays.asList("1", "2"), processed);
+		assertEquals(0, socket.closeStatus);
+	}
+
+	@Test
+	public void testClosePolicy() {
+		TestWebSocket socket = limitedSocket(0.001, 2, 0, 0, RateLimitPolicy.CLOSE);
+		socket.onMessage("1");
+		socket.onMessage("2");
+		assertEquals(0, socket.closeStatus);
+		socket.onMessage("3");
+		assertEquals(Arrays.asList("1", "2"), processed);
+		assertEquals(StatusCode.POLICY_VIOLATION, socket.closeStatus);
+	}
+
+	@Test
+	public void testPausePolicyProcessesThenPauses() {
+		TestWebSocket socket = limitedSocket(1, 1, 0, 0, RateLimitPolicy.PAUSE);
+		socket.onMessage("1");
+		assertEquals(0, socket.pausedNanos);
+		socket.onMessage("2");
+		assertEquals(Arrays.asList("1", "2"), processed);
+		assertTrue(socket.pausedNanos > 500000000L && socket.pausedNanos <= 1000000000L);
+	}
+
+	@Test
+	public void testByteLimit() {
+		TestWebSocket socket = limitedSocket(0, 0, 0.001, 10, RateLimitPolicy.DROP);
+		socket.onMessage("\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9");		// 12 UTF-8 bytes
+		socket.onMessage("0123456789");
+		assertEquals(Arrays.asList("0123456789"), processed);
+	}
+
+	@Test
+	public void testBatchIsChargedPerMessage() {
+		TestWebSocket socket = limitedSocket(0.001, 2, 0, 0, RateLimitPolicy.DROP);
+		socket.onMessage(WebSocketMessageBatcher.encode(Arrays.asList("1", "2", "3")));
+		assertTrue(processed.isEmpty());
+		socket.onMessage(WebSocketMessageBatcher.encode(Arrays.asList("4", "5")));
+		assertEquals(Arrays.asList("4", "5"), processed);
+		socket.onMessage("6");
+		assertEquals(Arrays.asList("4", "5"), processed);
+	}
+
+	private TestWebSocket limitedSocket(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst, RateLimitPolicy policy) {
+		server.setRateLimits(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst, policy);
+		TestWebSocket socket = new TestWebSocket();
+		socket.enableRateLimits();
+		return socket;
+	}
+}
@@ -0,0 +1,231 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.junit.Test;
+
+public class WebSocketReplayLogTest {
+
+	@Test
+	public void testReplayGap() throws IOException {
+		WebSocketReplayLog log = new WebSocketReplayLog(10);
+		List<TestWebSocket> none = new ArrayList<TestWebSocket>();
+		for (int i = 1; i <= 5; i++) {
+			log.publish("spat", "message " + i, none, new Recipients());
+		}
+		assertEquals(5, log.getLastSequence("spat"));
+		assertEquals(0, log.getLastSequence("map"));
+
+		TestWebSocket socket = new TestWebSocket();
+		log.replay(socket, "spat", log.getEpoch(), 3);
+		assertEquals(Arrays.asList("message 4", "message 5"), payloads(socket));
+		assertEquals(Arrays.asList("4", "5"), sequences(socket));
+	}
+
+	@Test
+	public void testEvictedMessagesAreSkipped() throws IOException {
+		WebSocketReplayLog log = new WebSocketReplayLog(3);
+		for (int i = 1; i <= 8; i++) {
+			log.publish("bsm", "message " + i, new ArrayList<TestWebSocket>(), new Recipients());
+		}
+
+		TestWebSocket socket = new TestWebSocket();
+		log.replay(socket, "bsm", log.getEpoch(), 2);
+		assertEquals(Arrays.asList("message 6", "message 7", "message 8"), payloads(socket));
+	}
+
+	@Test
+	public void testRestartedLogReplaysEverything() throws IOException {
+		WebSocketReplayLog log = new WebSocketReplayLog(10);
+		log.publish("bsm", "message 1", new ArrayList<TestWebSocket>(), new Recipients());
+
+		TestWebSocket socket = new TestWebSocket();
+		log.replay(socket, "bsm", log.getEpoch(), 500);
+		assertEquals(Arrays.asList("message 1"), payloads(socket));
+	}
+
+	@Test
+	public void testOtherEpochReplaysEverything() throws IOException {
+		WebSocketReplayLog log = new WebSocketReplayLog(10);
+		for (int i = 1; i <= 3; i++) {
+			log.publish("bsm", "message " + i, new ArrayList<TestWebSocket>(), new Recipients());
+		}
+		String previous = new WebSocketReplayLog(10).getEpoch();
+		assertFalse(previous.equals(log.getEpoch()));
+
+		TestWebSocket socket = new TestWebSocket();
+		log.replay(socket, "bsm", previous, 2);
+		assertEquals(Arrays.asList("message 1", "message 2", "message 3"), payloads(socket));
+		assertEquals(log.getEpoch(), WebSocketEnvelope.unwrap(socket.sent.get(0), WebSocketReplayLog.SEQUENCE_TYPE, 3)[1]);
+	}
+
+	@Test
+	public void testLiveMessagesWaitForReplay() throws IOException {
+		final WebSocketReplayLog log = new WebSocketReplayLog(10);
+		final List<TestWebSocket> connections = new ArrayList<TestWebSocket>();
+		final Recipients recipients = new Recipients();
+		log.publish("spat", "message 1", connections, new Recipients());
+
+		// Publish while the first replayed message is being sent
+		TestWebSocket socket = new TestWebSocket() {
+			@Override
+			protected void sendFrame(String message) {
+				super.sendFrame(message);
+				if (sent.size() == 1) {
+					log.publish("spat", "message 2", connections, recipients);
+				}
+			}
+		};
+		connections.add(socket);
+		log.replay(socket, "spat", log.getEpoch(), 0);
+
+		assertEquals(0, recipients.delivered.size());
+		assertEquals(Arrays.asList("message 1", "message 2"), payloads(socket));
+
+		log.publish("spat", "message 3", connections, recipients);
+		assertEquals(1, recipients.delivered.size());
+	}
+
+	@Test
+	public void testLivePublishBeforeResumeIsHeldBack() throws IOException {
+		WebSocketReplayLog log = new WebSocketReplayLog(10);
+		List<TestWebSocket> connections = new ArrayList<TestWebSocket>();
+		for (int i = 1; i <= 3; i++) {
+			log.publish("spat", "message " + i, connections, new Recipients());
+		}
+
+		// The client saw 1, reconnects, and 4 is published before its replay starts
+		TestWebSocket socket = new TestWebSocket();
+		log.hold(socket, "spat");
+		connections.add(socket);
+		Recipients live = new Recipients();
+		log.publish("spat", "message 4", connections, live);
+		assertEquals(0, live.delivered.size());
+
+		log.replay(socket, "spat", log.getEpoch(), 1);
+		assertEquals(Arrays.asList("message 2", "message 3", "message 4"), payloads(socket));
+		log.publish("spat", "message 5", connections, live);
+		assertEquals(1, live.delivered.size());
+	}
+
+	@Test
+	public void testSlowSubscriberDoesNotHoldTheTopic() throws IOException {
+		WebSocketReplayLog log = new WebSocketReplayLog(10);
+		TestWebSocket slow = new TestWebSocket();
+		slow.enablePublishQueue(2, 0);
+		List<TestWebSocket> connections = Arrays.asList(slow);
+		WebSocketReplayLog.Delivery<TestWebSocket> queued = new WebSocketReplayLog.Delivery<TestWebSocket>() {
+			public void deliver(List<TestWebSocket> recipients, String framed) {
+				for (TestWebSocket socket: recipients) {
+					try {
+						socket.sendPublished(framed);
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+
+		// No write ever completes, yet every publish returns
+		for (int i = 1; i <= 3; i++) {
+			log.publish("spat", "message " + i, connections, queued);
+		}
+		assertEquals(1, slow.sent.size());
+		assertEquals(0, slow.closeStatus);
+		log.publish("spat", "message 4", connections, queued);
+		assertEquals(StatusCode.TRY_AGAIN_LATER, slow.closeStatus);
+
+		slow.completeWrites();
+		assertEquals(Arrays.asList("message 1", "message 2", "message 3"), payloads(slow));
+	}
+
+	@Test
+	public void testResumeHeaderRoundTrip() {
+		String header = WebSocketReplayLog.resumeHeaderEntry("spat, intersection;7", "ab12", 42)
+				+ "," + WebSocketReplayLog.resumeHeaderEntry("bsm", "ab12", 0);
+		List<String[]> positions = WebSocketReplayLog.parseResumeHeader(header);
+		assertEquals(2, positions.size());
+		assertEquals(Arrays.asList("spat, intersection;7", "ab12", "42"), Arrays.asList(positions.get(0)));
+		assertEquals(Arrays.asList("bsm", "ab12", "0"), Arrays.asList(positions.get(1)));
+		assertTrue(WebSocketReplayLog.parseResumeHeader(null).isEmpty());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testMalformedResumeHeader() {
+		WebSocketReplayLog.parseResumeHeader("spat;ab12;many");
+	}
+
+	@Test
+	public void testDeliveryHoldsTheTopic() throws Exception {
+		final WebSocketReplayLog log = new WebSocketReplayLog(10);
+		final List<TestWebSocket> connections = new ArrayList<TestWebSocket>();
+		connections.add(new TestWebSocket());
+		final CountDownLatch delivering = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		// A resume that arrives while message 1 is being delivered must wait for it
+		Thread publisher = new Thread() {
+			public void run() {
+				log.publish("spat", "message 1", connections, new WebSocketReplayLog.Delivery<TestWebSocket>() {
+					public void deliver(List<TestWebSocket> recipients, String framed) {
+						delivering.countDown();
+						try { release.await(); } catch (InterruptedException e) {}
+					}
+				});
+			}
+		};
+		publisher.start();
+		delivering.await();
+
+		final TestWebSocket resumed = new TestWebSocket();
+		Thread resumer = new Thread() {
+			public void run() {
+				try {
+					log.replay(resumed, "spat", log.getEpoch(), 0);
+				} catch (IOException e) {
+				}
+			}
+		};
+		resumer.start();
+		resumer.join(200);
+		assertTrue(resumed.sent.isEmpty());
+
+		release.countDown();
+		publisher.join();
+		resumer.join();
+		assertEquals(Arrays.asList("message 1"), payloads(resumed));
+	}
+
+	private static class Recipients implements WebSocketReplayLog.Delivery<TestWebSocket> {
+		private final List<TestWebSocket> delivered = new ArrayList<TestWebSocket>();
+
+		public void deliver(List<TestWebSocket> recipients, String framed) {
+			delivered.clear();
+			delivered.addAll(recipients);
+		}
+	}
+
+	private static List<String> payloads(TestWebSocket socket) {
+		List<String> payloads = new ArrayList<String>();
+		for (String message: socket.sent) {
+			payloads.add(WebSocketEnvelope.unwrap(message, WebSocketReplayLog.SEQUENCE_TYPE, 3)[3]);
+		}
+		return payloads;
+	}
+
+	private static List<String> sequences(TestWebSocket socket) {
+		List<String> sequences = new ArrayList<String>();
+		for (String message: socket.sent) {
+			sequences.add(WebSocketEnvelope.unwrap(message, WebSocketReplayLog.SEQUENCE_TYPE, 3)[2]);
+		}
+		return sequences;
+	}
+}
@@ -0,0 +1,171 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import org.junit.Test;
+
+public class WebSocketRequestTableTest {
+
+	private static final WebSocketRequestHandler echoHandler = new WebSocketRequestHandler() {
+		public String handleRequest(BaseWebSocket socket, String request) throws Exception {
+			if (request.isEmpty()) {
+				throw new IllegalArgumentException("Empty request");
+			}
+			return "echo " + request;
+		}
+	};
+
+	@Test
+	public void testResponsesMatchRequests() throws Exception {
+		WebSocketRequestTable requests = new WebSocketRequestTable();
+		CompletableFuture<String> first = new CompletableFuture<String>();
+		CompletableFuture<String> second = new CompletableFuture<String>();
+		long firstId = requests.register(first, 5, TimeUnit.SECONDS);
+		long secondId = requests.register(second, 5, TimeUnit.SECONDS);
+		assertEquals(2, requests.getPendingCount());
+
+		// Answer out of order
+		requests.complete(WebSocketRequestTable.handle(echoHandler, null, WebSocketRequestTable.request(secondId, "two")));
+		requests.complete(WebSocketRequestTable.handle(echoHandler, null, WebSocketRequestTable.request(firstId, "one")));
+		assertEquals("echo one", first.get());
+		assertEquals("echo two", second.get());
+		assertEquals(0, requests.getPendingCount());
+	}
+
+	@Test
+	public void testHandlerFailure() throws InterruptedException {
+		WebSocketRequestTable requests = new WebSocketRequestTable();
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		long id = requests.register(response, 5, TimeUnit.SECONDS);
+
+		String envelope = WebSocketRequestTable.handle(echoHandler, null, WebSocketRequestTable.request(id, ""));
+		assertTrue(WebSocketRequestTable.isResponse(envelope));
+		requests.complete(envelope);
+		try {
+			response.get();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertTrue(response.isCompletedExceptionally());
+	}
+
+	@Test
+	public void testTimeout() throws InterruptedException {
+		WebSocketRequestTable requests = new WebSocketRequestTable();
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		requests.register(response, 50, TimeUnit.MILLISECONDS);
+		try {
+			response.get(2, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		} catch (TimeoutException e) {
+			throw new AssertionError("Request did not time out");
+		}
+		assertEquals(0, requests.getPendingCount());
+	}
+
+	@Test
+	public void testTimeoutCompletesOffScheduler() throws Exception {
+		WebSocketRequestTable requests = new WebSocketRequestTable();
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		final AtomicReference<String> completedOn = new AtomicReference<String>();
+		CompletableFuture<String> dependent = response.whenComplete(new BiConsumer<String, Throwable>() {
+			public void accept(String result, Throwable t) {
+				completedOn.set(Thread.currentThread().getName());
+			}
+		});
+		requests.register(response, 10, TimeUnit.MILLISECONDS);
+		try {
+			dependent.get(2, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertFalse(completedOn.get().startsWith("WebSocketScheduler"));
+	}
+
+	@Test
+	public void testMalformedResponseIsIgnored() {
+		WebSocketRequestTable requests = new WebSocketRequestTable();
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		requests.register(response, 5, TimeUnit.SECONDS);
+		requests.complete(WebSocketEnvelope.wrap(WebSocketRequestTable.RESPONSE_TYPE, "body", "not a number"));
+		requests.complete(WebSocketEnvelope.wrap(WebSocketRequestTable.ERROR_TYPE, "body", ""));
+		requests.complete("\u001Ersp\u001Eno id");
+		assertFalse(response.isDone());
+		assertEquals(1, requests.getPendingCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testRequestsOnOneConnectionRunInParallel() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		WebSocketServer server = new WebSocketServer(0);
+		server.setRequestThreads(2, 10);
+		server.setRequestHandler(new WebSocketRequestHandler() {
+			public String handleRequest(BaseWebSocket socket, String request) throws Exception {
+				if (request.equals("slow")) {
+					release.await();
+				}
+				return request + " done";
+			}
+		});
+		try {
+			TestWebSocket socket = new TestWebSocket();
+			// Neither call may wait for the slow handler
+			socket.onMessage(WebSocketRequestTable.request(1, "slow"));
+			socket.onMessage(WebSocketRequestTable.request(2, "fast"));
+			awaitSent(socket, 1);
+			assertEquals(WebSocketEnvelope.wrap(WebSocketRequestTable.RESPONSE_TYPE, "fast done", "2"), socket.sent.get(0));
+
+			release.countDown();
+			awaitSent(socket, 2);
+			assertEquals(WebSocketEnvelope.wrap(WebSocketRequestTable.RESPONSE_TYPE, "slow done", "1"), socket.sent.get(1));
+		} finally {
+			release.countDown();
+			server.setRequestHandler(null);
+			server.setRequestThreads(Runtime.getRuntime().availableProcessors(), 1024);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testTooManyPendingRequests() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		WebSocketServer server = new WebSocketServer(0);
+		server.setRequestThreads(1, 1);
+		server.setRequestHandler(new WebSocketRequestHandler() {
+			public String handleRequest(BaseWebSocket socket, String request) throws Exception {
+				release.await();
+				return request;
+			}
+		});
+		try {
+			TestWebSocket socket = new TestWebSocket();
+			for (int id = 1; id <= 3; id++) {
+				socket.onMessage(WebSocketRequestTable.request(id, "request " + id));
+			}
+			awaitSent(socket, 1);
+			assertTrue(WebSocketEnvelope.isType(socket.sent.get(0), WebSocketRequestTable.ERROR_TYPE));
+			assertEquals("3", WebSocketEnvelope.unwrap(socket.sent.get(0), WebSocketRequestTable.ERROR_TYPE, 1)[0]);
+		} finally {
+			release.countDown();
+			server.setRequestHandler(null);
+			server.setRequestThreads(Runtime.getRuntime().availableProcessors(), 1024);
+		}
+	}
+
+	private static void awaitSent(TestWebSocket socket, int count) throws InterruptedException {
+		while (socket.sent.size() < count) {
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WebSocketSessionRegistryTest {
+
+	@Test
+	public void testRegisterAndLookup() {
+		WebSocketSessionRegistry<String> registry = new WebSocketSessionRegistry<String>();
+		long first = registry.register("first");
+		long second = registry.register("second");
+		assertTrue(first != second);
+		assertEquals("second", registry.get(second));
+		assertEquals(Arrays.asList("first", "second"), registry.sessions());
+
+		assertTrue(registry.unregister(first));
+		assertFalse(registry.unregister(first));
+		assertNull(registry.get(first));
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void testSnapshotIsStable() {
+		WebSocketSessionRegistry<String> registry = new WebSocketSessionRegistry<String>();
+		long first = registry.register("first");
+		List<String> snapshot = registry.sessions();
+		registry.register("second");
+		registry.unregister(first);
+		assertEquals(Arrays.asList("first"), snapshot);
+		assertEquals(Arrays.asList("second"), registry.sessions());
+	}
+
+	@Test
+	public void testAttributeIndexes() {
+		WebSocketSessionRegistry<String> registry = new WebSocketSessionRegistry<String>();
+		long first = registry.register("first");
+		long second = registry.register("second");
+		registry.setAttribute(first, WebSocketSessionRegistry.REMOTE_HOST, "10.0.0.1");
+		registry.setAttribute(second, WebSocketSessionRegistry.REMOTE_HOST, "10.0.0.1");
+		registry.setAttribute(second, "intersection", 1234);
+
+		assertEquals(Arrays.asList("first", "second"), registry.find(WebSocketSessionRegistry.REMOTE_HOST, "10.0.0.1"));
+		assertEquals(Arrays.asList("second"), registry.find("intersection", 1234));
+		assertEquals(1234, registry.getAttribute(second, "intersection"));
+
+		registry.setAttribute(second, "intersection", 5678);
+		assertTrue(registry.find("intersection", 1234).isEmpty());
+		assertEquals(Arrays.asList("second"), registry.find("intersection", 5678));
+
+		registry.unregister(first);
+		assertEquals(Arrays.asList("second"), registry.find(WebSocketSessionRegistry.REMOTE_HOST, "10.0.0.1"));
+		registry.setAttribute(second, "intersection", null);
+		assertTrue(registry.find("intersection", 5678).isEmpty());
+		assertTrue(registry.find("unknown", "value").isEmpty());
+	}
+}
@@ -0,0 +1,50 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WebSocketShutdownTest {
+
+	@Test
+	public void testReconnectHintRoundTrip() {
+		String reason = WebSocketServer.reconnectHint(15000);
+		assertTrue(reason.startsWith(WebSocketServer.RECONNECT_AFTER));
+		assertEquals(15000, WebSocketClient.parseReconnectHint(reason));
+		assertEquals(0, WebSocketClient.parseReconnectHint(WebSocketServer.reconnectHint(0)));
+	}
+
+	@Test
+	public void testMissingOrInvalidHintMeansNoDelay() {
+		assertEquals(0, WebSocketClient.parseReconnectHint(null));
+		assertEquals(0, WebSocketClient.parseReconnectHint(""));
+		assertEquals(0, WebSocketClient.parseReconnectHint("Going away"));
+		assertEquals(0, WebSocketClient.parseReconnectHint(WebSocketServer.RECONNECT_AFTER + "soon"));
+		assertEquals(0, WebSocketClient.parseReconnectHint(WebSocketServer.RECONNECT_AFTER + "-500"));
+	}
+
+	@Test
+	public void testCloseScheduleSpreadsOverWindow() {
+		long[] expected = { 0, 250, 500, 750 };
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], WebSocketServer.closeOffset(i, expected.length, 1000));
+		}
+
+		int count = 7;
+		long previous = -1;
+		for (int i = 0; i < count; i++) {
+			long offset = WebSocketServer.closeOffset(i, count, 1000);
+			assertTrue(offset > previous && offset < 1000);
+			previous = offset;
+		}
+	}
+
+	@Test
+	public void testCloseScheduleWithoutWindow() {
+		assertEquals(0, WebSocketServer.closeOffset(0, 1, 5000));
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, WebSocketServer.closeOffset(i, 3, 0));
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WebSocketTokenBucketTest {
+
+	@Test
+	public void testBurstThenLimit() {
+		WebSocketTokenBucket bucket = new WebSocketTokenBucket(1, 5);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(bucket.tryConsume(1));
+		}
+		assertFalse(bucket.tryConsume(1));
+	}
+
+	@Test
+	public void testConsumeReportsDebt() {
+		WebSocketTokenBucket bucket = new WebSocketTokenBucket(100, 100);
+		assertEquals(0, bucket.consume(100));
+		long pause = bucket.consume(50);
+		assertTrue(pause > TimeUnit.MILLISECONDS.toNanos(400));
+		assertTrue(pause <= TimeUnit.MILLISECONDS.toNanos(500));
+		assertFalse(bucket.tryConsume(1));
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException {
+		WebSocketTokenBucket bucket = new WebSocketTokenBucket(1000, 10);
+		assertTrue(bucket.tryConsume(10));
+		assertFalse(bucket.tryConsume(1));
+		Thread.sleep(50);
+		assertTrue(bucket.tryConsume(10));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidRate() {
+		new WebSocketTokenBucket(0, 10);
+	}
+}
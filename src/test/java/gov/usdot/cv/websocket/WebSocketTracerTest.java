@@ -0,0 +1,158 @@
+package gov.usdot.cv.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.usdot.cv.websocket.WebSocketServer.ServerWebSocket;
+import gov.usdot.cv.websocket.WebSocketTracer.Stage;
+
+public class WebSocketTracerTest {
+
+	@Before
+	public void setUp() {
+		WebSocketTracer.reset();
+		WebSocketTracer.setEnabled(true);
+	}
+
+	@After
+	public void tearDown() {
+		WebSocketTracer.setEnabled(false);
+		WebSocketTracer.reset();
+	}
+
+	@Test
+	public void testBucketsCoverValues() {
+		long[] values = { 0, 1, 3, 4, 7, 8, 1000, 123456789, Long.MAX_VALUE };
+		for (long value: values) {
+			int bucket = WebSocketTracer.bucket(value);
+			assertTrue(value <= WebSocketTracer.bucketUpperBound(bucket));
+			assertTrue(bucket == 0 || value > WebSocketTracer.bucketUpperBound(bucket - 1));
+		}
+	}
+
+	@Test
+	public void testSnapshotCombinesThreads() throws InterruptedException {
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 1; i <= 1000; i++) {
+						WebSocketTracer.record(Stage.DISPATCH, i * 1000L);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+
+		WebSocketTracer.Snapshot snapshot = WebSocketTracer.snapshot(Stage.DISPATCH);
+		assertEquals(4000, snapshot.getCount());
+		assertEquals(500500, snapshot.getMeanNanos());
+		assertEquals(1000000, snapshot.getMaxNanos());
+		long median = snapshot.getPercentileNanos(50);
+		assertTrue(median >= 500000 && median <= 625000);
+		assertEquals(1000000, snapshot.getPercentileNanos(100));
+		assertEquals(0, WebSocketTracer.snapshot(Stage.WRITE).getCount());
+	}
+
+	@Test
+	public void testDeadThreadsAreRetired() throws InterruptedException {
+		for (int round = 0; round < 20; round++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					WebSocketTracer.record(Stage.WRITE, 5000);
+				}
+			});
+			thread.start();
+			thread.join();
+		}
+		WebSocketTracer.record(Stage.WRITE, 7000);
+
+		WebSocketTracer.Snapshot snapshot = WebSocketTracer.snapshot(Stage.WRITE);
+		assertEquals(21, snapshot.getCount());
+		assertEquals(7000, snapshot.getMaxNanos());
+		assertTrue(WebSocketTracer.getRecorderCount() < 20);
+
+		WebSocketTracer.reset();
+		assertEquals(0, WebSocketTracer.snapshot(Stage.WRITE).getCount());
+	}
+
+	@Test
+	public void testDisabledRecordsNothing() {
+		WebSocketTracer.setEnabled(false);
+		WebSocketTracer.record(Stage.WRITE, 1000);
+		assertEquals("message", WebSocketTracer.wrap("message"));
+		assertEquals(0, WebSocketTracer.snapshot(Stage.WRITE).getCount());
+	}
+
+	@Test
+	public void testWrapAndUnwrap() {
+		String traced = WebSocketTracer.wrap("message");
+		assertTrue(WebSocketTracer.isTraced(traced));
+		assertFalse(WebSocketTracer.isTraced("message"));
+		assertEquals("message", WebSocketTracer.unwrap(traced, WebSocketTracer.epochNanos()));
+		assertEquals("message", WebSocketTracer.unwrap("message", WebSocketTracer.epochNanos()));
+		assertEquals(1, WebSocketTracer.snapshot(Stage.PUBLISH_TO_RECEIVE).getCount());
+	}
+
+	@Test
+	public void testOnlyTracedConnectionsGetEnvelopes() {
+		TestWebSocket plain = new TestWebSocket();
+		TestWebSocket traced = new TestWebSocket();
+		traced.setTraced(true);
+		List<ServerWebSocket> sockets = new ArrayList<ServerWebSocket>();
+		sockets.add(plain);
+		sockets.add(traced);
+
+		new WebSocketServer(0).sendMessage(sockets, "message");
+		assertEquals(Arrays.asList("message"), plain.sent);
+		assertTrue(WebSocketTracer.isTraced(traced.sent.get(0)));
+		assertEquals("message", WebSocketTracer.unwrap(traced.sent.get(0), WebSocketTracer.epochNanos()));
+
+		WebSocketTracer.setEnabled(false);
+		new WebSocketServer(0).sendMessage(sockets, "untraced");
+		assertEquals("untraced", traced.sent.get(1));
+	}
+
+	@Test
+	public void testWrapWithoutStamp() {
+		assertEquals("message", WebSocketTracer.wrap("message", 0));
+		assertTrue(WebSocketTracer.isTraced(WebSocketTracer.wrap("message", WebSocketTracer.stamp())));
+		WebSocketTracer.setEnabled(false);
+		assertEquals(0, WebSocketTracer.stamp());
+	}
+
+	@Test
+	public void testDump() throws IOException {
+		WebSocketTracer.record(Stage.WRITE, 2000);
+		File file = File.createTempFile("trace", ".tsv");
+		try {
+			WebSocketTracer.dump(file);
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				assertTrue(reader.readLine().startsWith("stage"));
+				reader.readLine();
+				assertTrue(reader.readLine().startsWith("WRITE\t1\t2.0"));
+			} finally {
+				reader.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}